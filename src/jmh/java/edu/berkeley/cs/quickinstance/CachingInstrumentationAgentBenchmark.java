@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the throughput of class loads through the agent with the
+ * single lock that used to guard its whole <tt>transform</tt> method,
+ * and with the current path, where hits take no lock and misses only
+ * lock their stripe.
+ *
+ * <p>Several threads load a mix of classes: most are cache hits, and
+ * one in {@value #MISS_EVERY} is a class that the transformer spends
+ * time on and rejects, so it misses every time. Under the single lock,
+ * hits queue behind those misses, so the difference shows with as many
+ * cores as threads; on one core both run at about the same rate. The
+ * cache is kept in <tt>jmh-cache</tt> under the working directory.</p>
+ *
+ * @author Rohan Padhye
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dquickinstance.cacheDir=jmh-cache")
+@Threads(4)
+public class CachingInstrumentationAgentBenchmark {
+
+    private static final int CLASSES = 256;
+    private static final int MISS_EVERY = 8;
+    private static final ClassLoader LOADER = CachingInstrumentationAgentBenchmark.class.getClassLoader();
+
+    /** Returns a copy of the input for hits; burns some time and gives up on names starting with "miss". */
+    public static class SlowTransformer implements ClassFileTransformer {
+        @Override
+        public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                                ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+            Blackhole.consumeCPU(2000);
+            return className.startsWith("miss") ? null : Arrays.copyOf(classfileBuffer, classfileBuffer.length);
+        }
+    }
+
+    /** The agent behind one lock, as it was before misses were striped. */
+    static final class GlobalLockAgent implements ClassFileTransformer {
+        private final CachingInstrumentationAgent agent;
+
+        GlobalLockAgent(CachingInstrumentationAgent agent) {
+            this.agent = agent;
+        }
+
+        @Override
+        public synchronized byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                                             ProtectionDomain protectionDomain, byte[] classfileBuffer)
+                throws IllegalClassFormatException {
+            return agent.transform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Agents {
+        final String[] names = new String[CLASSES];
+        final byte[][] bytes = new byte[CLASSES][];
+        ClassFileTransformer striped;
+        ClassFileTransformer global;
+
+        @Setup
+        public void setUp() throws IllegalClassFormatException {
+            CachingInstrumentationAgent agent = new CachingInstrumentationAgent(new SlowTransformer());
+            striped = agent;
+            global = new GlobalLockAgent(agent);
+            for (int i = 0; i < CLASSES; i++) {
+                names[i] = (i % MISS_EVERY == 0 ? "miss/C" : "hit/C") + i;
+                bytes[i] = names[i].getBytes();
+                // Warm the cache with the hits
+                agent.transform(LOADER, names[i], null, null, bytes[i]);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Loads {
+        int next;
+
+        int next() {
+            int i = next;
+            next = (i + 1) & (CLASSES - 1);
+            return i;
+        }
+    }
+
+    @Benchmark
+    public byte[] globalLock(Agents agents, Loads loads) throws IllegalClassFormatException {
+        int i = loads.next();
+        return agents.global.transform(LOADER, agents.names[i], null, null, agents.bytes[i]);
+    }
+
+    @Benchmark
+    public byte[] stripedLocks(Agents agents, Loads loads) throws IllegalClassFormatException {
+        int i = loads.next();
+        return agents.striped.transform(LOADER, agents.names[i], null, null, agents.bytes[i]);
+    }
+}
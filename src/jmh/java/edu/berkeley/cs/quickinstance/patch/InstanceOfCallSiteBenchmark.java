@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.patch;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares a settled {@link InstanceOfCallSite} against a native
+ * <tt>instanceof</tt>, at a site that sees two receiver classes and
+ * null.
+ *
+ * <p>Each call site is held in a <tt>static final</tt> field and
+ * called with <tt>invokeExact</tt>, as an <tt>invokedynamic</tt>
+ * instruction would be, so that the JIT can inline through it. The
+ * call site is linked during warmup; the measurement is the steady
+ * state, where the guards answer every call.</p>
+ *
+ * @author Rohan Padhye
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstanceOfCallSiteBenchmark {
+
+    interface Shape {}
+    static class Circle implements Shape {}
+    static class Square implements Shape {}
+
+    private static final MethodHandle SHAPE = site(Shape.class);
+    private static final MethodHandle CIRCLE = site(Circle.class);
+
+    private static MethodHandle site(Class<?> target) {
+        return InstanceOfCallSite.bootstrap(MethodHandles.lookup(), "instanceOf",
+                MethodType.methodType(boolean.class, Object.class), target).dynamicInvoker();
+    }
+
+    private final Object[] objects = {new Circle(), new Square(), null, new Circle()};
+    private int next;
+
+    private Object next() {
+        Object object = objects[next];
+        next = next + 1 == objects.length ? 0 : next + 1;
+        return object;
+    }
+
+    @Benchmark
+    public int nativeInstanceOf() {
+        Object object = next();
+        return (object instanceof Shape ? 1 : 0) + (object instanceof Circle ? 2 : 0);
+    }
+
+    @Benchmark
+    public int callSiteInstanceOf() throws Throwable {
+        Object object = next();
+        return ((boolean) SHAPE.invokeExact(object) ? 1 : 0) + ((boolean) CIRCLE.invokeExact(object) ? 2 : 0);
+    }
+}
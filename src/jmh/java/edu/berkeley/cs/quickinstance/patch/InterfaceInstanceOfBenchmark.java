@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.patch;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the interface bitset check of the {@link TypeRegistry}
+ * against a native <tt>instanceof</tt>, for classes that implement
+ * many interfaces.
+ *
+ * <p>Each operation tests one object against two interfaces, the
+ * first and the last that its class implements, so that the JVM's
+ * one-entry cache of the last secondary supertype found keeps
+ * missing and the native test scans the list of interfaces. The
+ * generic registry check, which first looks at what the target is,
+ * is measured as well.</p>
+ *
+ * @author Rohan Padhye
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterfaceInstanceOfBenchmark {
+
+    interface I0 {} interface I1 {} interface I2 {} interface I3 {}
+    interface I4 {} interface I5 {} interface I6 {} interface I7 {}
+    interface I8 {} interface I9 {} interface I10 {} interface I11 {}
+    interface I12 {} interface I13 {} interface I14 {} interface I15 {}
+
+    static class A implements I0, I1, I2, I3, I4, I5, I6, I7, I8, I9, I10, I11, I12, I13, I14, I15 {}
+    static class B implements I0, I2, I4, I6, I8, I10, I12, I14, I15 {}
+    static class C extends A {}
+    static class D implements I1, I3, I5, I7, I9, I11, I13, I15 {}
+
+    private final Object[] objects = {new A(), new B(), new C(), new D()};
+    private int next;
+
+    private Object next() {
+        Object object = objects[next];
+        next = next + 1 == objects.length ? 0 : next + 1;
+        return object;
+    }
+
+    @Benchmark
+    public int nativeInstanceOf() {
+        Object object = next();
+        return (object instanceof I0 ? 1 : 0) + (object instanceof I15 ? 2 : 0);
+    }
+
+    @Benchmark
+    public int bitsetInstanceOf() {
+        Object object = next();
+        return (TypeRegistry.instanceOfInterface(object, I0.class) ? 1 : 0)
+                + (TypeRegistry.instanceOfInterface(object, I15.class) ? 2 : 0);
+    }
+
+    @Benchmark
+    public int genericInstanceOf() {
+        Object object = next();
+        return (TypeRegistry.instanceOf(object, I0.class) ? 1 : 0)
+                + (TypeRegistry.instanceOf(object, I15.class) ? 2 : 0);
+    }
+}
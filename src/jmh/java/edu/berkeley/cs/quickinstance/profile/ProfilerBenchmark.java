@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.profile;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the overhead of the profiler's <tt>instanceof</tt> hook for
+ * registered sites, which is what instrumented code calls, against a
+ * native <tt>instanceof</tt>, and how it scales with the number of
+ * threads running profiled code.
+ *
+ * <p>By default each benchmark runs on {@value #THREADS} threads. Run
+ * <tt>main</tt> to print throughput per thread for 1 to N threads (N
+ * is the first argument, or the number of processors) instead. With
+ * counters that contend, per-thread throughput of the profiled hook
+ * drops as threads are added; with striped counters it should stay
+ * level, as it does for the native test. Threads either all test at
+ * one site, or each at its own site next to the others' sites, which
+ * would share cache lines if the counters were not striped. The
+ * sampled benchmark shows the cost of calls that are not recorded.</p>
+ *
+ * @author Rohan Padhye
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(ProfilerBenchmark.THREADS)
+public class ProfilerBenchmark {
+
+    static final int THREADS = 4;
+
+    /** Global ID of the first of {@link #THREADS} registered sites, one per thread. */
+    private static final int SITES = Profiler.registerSites(new String[] {sites()});
+    private static final AtomicInteger threads = new AtomicInteger();
+
+    private static String sites() {
+        StringBuilder sites = new StringBuilder();
+        for (int i = 0; i < THREADS; i++) {
+            sites.append("instanceof 1 - ProfilerBenchmark#run()V@").append(i).append('\n');
+        }
+        return sites.toString();
+    }
+
+    /** This thread's own site. */
+    private int site;
+
+    @Setup
+    public void setUp() {
+        site = SITES + threads.getAndIncrement() % THREADS;
+    }
+
+    private final Object[] objects = {"a", 1, 2.0, new StringBuilder(), new Object[0], 'c', 3L};
+    private int next;
+
+    private Object next() {
+        Object object = objects[next];
+        next = next + 1 == objects.length ? 0 : next + 1;
+        return object;
+    }
+
+    @Benchmark
+    public boolean nativeInstanceOf() {
+        return next() instanceof Serializable;
+    }
+
+    /** All threads test at the same site. */
+    @Benchmark
+    public boolean sharedSiteInstanceOf() {
+        return Profiler.instanceOf(next(), Serializable.class, SITES);
+    }
+
+    /** Each thread tests at its own site, next to the other threads' sites. */
+    @Benchmark
+    public boolean ownSiteInstanceOf() {
+        return Profiler.instanceOf(next(), Serializable.class, site);
+    }
+
+    /** The site hook when only 1 in 1000 calls is recorded; unsampled calls only count down. */
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dquickinstance.profile.sampleRate=1000")
+    public boolean sampledSiteInstanceOf() {
+        return Profiler.instanceOf(next(), Serializable.class, site);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        StringBuilder table = new StringBuilder(String.format("%8s %-28s %14s\n", "threads", "benchmark", "ops/us/thread"));
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            Options options = new OptionsBuilder()
+                    .include(ProfilerBenchmark.class.getName())
+                    .threads(threads)
+                    .build();
+            for (RunResult result : new Runner(options).run()) {
+                String name = result.getParams().getBenchmark();
+                table.append(String.format("%8d %-28s %14.1f\n", threads, name.substring(name.lastIndexOf('.') + 1),
+                        result.getPrimaryResult().getScore() / threads));
+            }
+        }
+        System.out.print(table);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.berkeley.cs.quickinstance.cache.MemoryCache;
+
+/**
+ * Counters describing the performance of a {@link CachingInstrumentationAgent}.
+ *
+ * All counters on the class-load path are {@link LongAdder}s, so that
+ * concurrent class loads do not contend on them. The table of slowest
+ * classes is only locked when a transform is slower than every class
+ * already in it.
+ *
+ * @author Rohan Padhye
+ */
+public class AgentMetrics implements AgentMetricsMXBean {
+
+    private static final int HISTOGRAM_BUCKETS = 32;
+    private static final int SLOWEST_CLASSES = 16;
+
+    private final MemoryCache memoryCache;
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder transformNanos = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder[]> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> failures = new ConcurrentHashMap<>();
+
+    private final String[] slowestNames = new String[SLOWEST_CLASSES];
+    private final long[] slowestMicros = new long[SLOWEST_CLASSES];
+    private volatile long slowestThreshold = 0;
+
+    /** @param memoryCache the in-memory tier, or <tt>null</tt> if there is none */
+    public AgentMetrics(MemoryCache memoryCache) {
+        this.memoryCache = memoryCache;
+    }
+
+    public void recordHit(int bytes) {
+        cacheHits.increment();
+        bytesRead.add(bytes);
+    }
+
+    public void recordMiss() {
+        cacheMisses.increment();
+    }
+
+    public void recordWrite(int bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    public void recordFailure(String reason) {
+        failures.computeIfAbsent(reason, r -> new LongAdder()).increment();
+    }
+
+    public void recordTransform(String transformer, String cname, long nanos) {
+        transformNanos.add(nanos);
+
+        LongAdder[] histogram = histograms.get(transformer);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(transformer, t -> {
+                LongAdder[] buckets = new LongAdder[HISTOGRAM_BUCKETS];
+                for (int i = 0; i < buckets.length; i++) {
+                    buckets[i] = new LongAdder();
+                }
+                return buckets;
+            });
+        }
+        long micros = nanos / 1000;
+        int bucket = micros <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+        histogram[Math.min(bucket, HISTOGRAM_BUCKETS - 1)].increment();
+
+        if (micros > slowestThreshold) {
+            recordSlow(cname, micros);
+        }
+    }
+
+    private synchronized void recordSlow(String cname, long micros) {
+        // Replace the fastest of the slowest classes
+        int min = 0;
+        for (int i = 1; i < SLOWEST_CLASSES; i++) {
+            if (slowestMicros[i] < slowestMicros[min]) {
+                min = i;
+            }
+        }
+        if (micros > slowestMicros[min]) {
+            slowestNames[min] = cname;
+            slowestMicros[min] = micros;
+        }
+
+        long threshold = Long.MAX_VALUE;
+        for (int i = 0; i < SLOWEST_CLASSES; i++) {
+            threshold = Math.min(threshold, slowestMicros[i]);
+        }
+        slowestThreshold = threshold;
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getMemoryHits() {
+        return memoryCache != null ? memoryCache.hits() : 0;
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getTransformNanos() {
+        return transformNanos.sum();
+    }
+
+    @Override
+    public Map<String, long[]> getTransformLatencyHistograms() {
+        Map<String, long[]> result = new HashMap<>();
+        for (Map.Entry<String, LongAdder[]> e : histograms.entrySet()) {
+            long[] counts = new long[HISTOGRAM_BUCKETS];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = e.getValue()[i].sum();
+            }
+            result.put(e.getKey(), counts);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getFailures() {
+        Map<String, Long> result = new HashMap<>();
+        for (Map.Entry<String, LongAdder> e : failures.entrySet()) {
+            result.put(e.getKey(), e.getValue().sum());
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized Map<String, Long> getSlowestClasses() {
+        Map<String, Long> result = new HashMap<>();
+        for (int i = 0; i < SLOWEST_CLASSES; i++) {
+            if (slowestNames[i] != null) {
+                result.put(slowestNames[i], slowestMicros[i]);
+            }
+        }
+        return result;
+    }
+
+    public void printCacheStats(PrintStream out) {
+        long m = getMemoryHits();
+        long h = getCacheHits();
+        long x = getCacheMisses();
+        long total = h + x;
+        out.printf("cache: total=%d, mem=%d (%.2f), disk=%d (%.2f), miss=%d (%.2f)\n",
+                total,
+                m, ratio(m, total),
+                h - m, ratio(h - m, total),
+                x, ratio(x, total));
+    }
+
+    private static float ratio(long count, long total) {
+        return total == 0 ? 0 : ((float) count) / ((float) total);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance;
+
+import java.util.Map;
+
+/**
+ * Management interface exposing the performance of a
+ * {@link CachingInstrumentationAgent}.
+ *
+ * @author Rohan Padhye
+ */
+public interface AgentMetricsMXBean {
+
+    /** Returns the number of class loads served from either cache tier. */
+    long getCacheHits();
+
+    /** Returns the number of class loads served from the in-memory tier. */
+    long getMemoryHits();
+
+    /** Returns the number of class loads that had to be transformed. */
+    long getCacheMisses();
+
+    /** Returns the total size of instrumented classes served from the cache. */
+    long getBytesRead();
+
+    /** Returns the total size of instrumented classes written to the cache. */
+    long getBytesWritten();
+
+    /** Returns the total time spent in transformers, in nanoseconds. */
+    long getTransformNanos();
+
+    /**
+     * Returns a latency histogram per transformer, where bucket <tt>i</tt>
+     * counts transforms that took between <tt>2^i</tt> and <tt>2^(i+1)</tt>
+     * microseconds (bucket 0 also counts anything faster).
+     */
+    Map<String, long[]> getTransformLatencyHistograms();
+
+    /** Returns the number of failed transforms, by reason. */
+    Map<String, Long> getFailures();
+
+    /** Returns the slowest classes to transform, with their latency in microseconds. */
+    Map<String, Long> getSlowestClasses();
+}
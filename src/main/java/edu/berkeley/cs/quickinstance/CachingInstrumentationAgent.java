@@ -29,14 +29,23 @@
 package edu.berkeley.cs.quickinstance;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
-import java.nio.file.Files;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileLock;
 import java.security.ProtectionDomain;
-import java.util.Arrays;
+
+import javax.management.ObjectName;
+
+import edu.berkeley.cs.quickinstance.cache.CacheLock;
+import edu.berkeley.cs.quickinstance.cache.CachePrefetcher;
+import edu.berkeley.cs.quickinstance.cache.ClassCache;
+import edu.berkeley.cs.quickinstance.cache.DirectoryCache;
+import edu.berkeley.cs.quickinstance.cache.MemoryCache;
+import edu.berkeley.cs.quickinstance.cache.PackedCache;
 
 /**
  * @author Rohan Padhye
@@ -44,83 +53,224 @@ import java.util.Arrays;
 @SuppressWarnings("unused") // Loaded by javaagent
 public class CachingInstrumentationAgent implements ClassFileTransformer {
 
-    private static final String[] banned = {"[", "java", "sun", "jdk",
-            "org/objectweb/asm", "edu/berkeley/cs/quickinstance", "org/w3c"};
-
     private static final String instDir = System.getProperty("quickinstance.cacheDir",
             ".cache");
     private static final String transformer = System.getProperty("quickinstance.transformer",
             "edu.berkeley.cs.quickinstance.profile.ProfilingTransformer");
+    private static final String transformerVersion = System.getProperty("quickinstance.transformerVersion");
+    private static final String cacheFormat = System.getProperty("quickinstance.cacheFormat",
+            "dir");
+    private static final int cacheVersions = Integer.getInteger("quickinstance.cacheVersions",
+            4);
+    private static final long memoryCacheSize = Long.getLong("quickinstance.memoryCacheSize",
+            32L << 20);
+    private static final boolean cacheStats = Boolean.getBoolean("quickinstance.cacheStats");
+    private static final boolean prefetch = Boolean.getBoolean("quickinstance.prefetch");
+    private static final int prefetchThreads = Integer.getInteger("quickinstance.prefetchThreads",
+            2);
+    private static final boolean filterStats = Boolean.getBoolean("quickinstance.filterStats");
+    private static final boolean lockCache = Boolean.getBoolean("quickinstance.cacheLock");
 
 
     public static void premain(String agentArgs, Instrumentation inst) throws Exception {
         Class<?> transformerClass = Class.forName(transformer);
-        inst.addTransformer(new CachingInstrumentationAgent((ClassFileTransformer) transformerClass.newInstance()),
-                true);
-    }
+        ClassFilter filter = ClassFilter.fromConfig(agentArgs);
+        CachingInstrumentationAgent agent =
+                new CachingInstrumentationAgent((ClassFileTransformer) transformerClass.newInstance(), filter);
+        inst.addTransformer(agent, true);
 
-    private static boolean shouldExclude(String cname) {
-        for (String e : banned) {
-            if (cname.startsWith(e)) {
-                return true;
+        // Starting the platform MBean server is slow, so keep it off the startup path
+        Thread jmx = new Thread(() -> {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(agent.metrics,
+                        new ObjectName("edu.berkeley.cs.quickinstance:type=Agent,transformer=" + agent.shortName));
+            } catch (Exception e) {
+                e.printStackTrace();
             }
+        }, "quickinstance-jmx");
+        jmx.setDaemon(true);
+        jmx.start();
+
+        if (cacheStats) {
+            PrintStream out = System.err;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> agent.metrics.printCacheStats(out)));
+        }
+        if (filterStats) {
+            PrintStream out = System.err;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> filter.printStats(out)));
+        }
+
+        // Warm the memory tier with the classes loaded by the previous run, in the same order
+        if (agent.prefetcher != null) {
+            agent.prefetcher.start(prefetchThreads);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    agent.prefetcher.saveLoadOrder();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
         }
-        return false;
     }
 
+    /** Number of lock stripes guarding cache misses; must be a power of two. */
+    private static final int LOCK_STRIPES = 256;
+
     private final ClassFileTransformer delegate;
+    private final ClassFilter filter;
     private final String shortName;
+    private final long keySeed;
+    private final ClassCache cache;
+    private final MemoryCache memoryCache;
+    private final CachePrefetcher prefetcher;
+    private final AgentMetrics metrics;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final CacheLock cacheLock;
 
     public CachingInstrumentationAgent(ClassFileTransformer delegate) {
+        this(delegate, ClassFilter.fromConfig(null));
+    }
+
+    public CachingInstrumentationAgent(ClassFileTransformer delegate, ClassFilter filter) {
         this.delegate = delegate;
+        this.filter = filter;
         this.shortName = delegate.getClass().getSimpleName();
+
+        // Cache entries are only valid for the transformer (version and configuration) that produced them
+        String version = transformerVersion;
+        if (version == null) {
+            version = delegate.getClass().getPackage() != null ?
+                    delegate.getClass().getPackage().getImplementationVersion() : null;
+        }
+        String configuration = delegate instanceof ConfiguredTransformer ?
+                ((ConfiguredTransformer) delegate).configuration() : "";
+        this.keySeed = ContentHash.hash(delegate.getClass().getName() + ":" + version + ":" + configuration);
+        ClassCache diskCache = instDir != null ? createCache(shortName) : null;
+        this.memoryCache = diskCache != null && memoryCacheSize > 0 ?
+                new MemoryCache(diskCache, memoryCacheSize) : null;
+        this.cache = memoryCache != null ? memoryCache : diskCache;
+        this.prefetcher = prefetch && memoryCache != null ?
+                new CachePrefetcher(new File(instDir, shortName + ".order"), memoryCache, memoryCacheSize) : null;
+        this.metrics = new AgentMetrics(memoryCache);
+        this.cacheLock = diskCache != null && lockCache ? createCacheLock(shortName) : null;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    private static CacheLock createCacheLock(String shortName) {
+        try {
+            return new CacheLock(new File(instDir, shortName + ".lock"));
+        } catch (IOException e) {
+            System.err.printf("[instrument] Cannot open cache lock, not coordinating with other JVMs: %s\n",
+                    e.getMessage());
+            return null;
+        }
+    }
+
+    public AgentMetrics getMetrics() {
+        return metrics;
+    }
+
+    private static ClassCache createCache(String shortName) {
+        if (cacheFormat.equals("pack")) {
+            try {
+                return new PackedCache(new File(instDir), shortName);
+            } catch (IOException e) {
+                System.err.printf("[instrument] Cannot open pack cache, using directory cache: %s\n", e.getMessage());
+            }
+        }
+        return new DirectoryCache(new File(instDir, shortName), cacheVersions);
     }
 
     @Override
-    synchronized public byte[] transform(ClassLoader loader, String cname, Class<?> classBeingRedefined,
-                                         ProtectionDomain d, byte[] cbuf)
+    public byte[] transform(ClassLoader loader, String cname, Class<?> classBeingRedefined,
+                            ProtectionDomain d, byte[] cbuf)
             throws IllegalClassFormatException {
 
-        // Do not instrument the JDK or instrumentation classes
-        if (shouldExclude(cname)) {
+        // Bootstrap classes cannot see the agent's runtime classes, and include the JMX implementation
+        if (loader == null) {
+            return null;
+        }
+
+        // Do not instrument the JDK, instrumentation classes, or anything the user excluded
+        if (filter.shouldExclude(cname)) {
             return null;
         }
 
-        File cachedFile = new File(String.format("%s/%s/%s.class", instDir, shortName, cname));
-        File referenceFile = new File(String.format("%s/%s/%s.class", instDir, "original", cname));
+        // Cache entries are keyed by a hash of the original bytes
+        long key = ContentHash.hash(keySeed, cbuf);
+        if (prefetcher != null) {
+            prefetcher.recordLoad(cname, key);
+        }
 
+        // Cache hits do not take any lock
+        byte[] cached = cache != null ? cache.get(cname, key) : null;
+        if (cached != null) {
+            //System.err.printf("[instrument] %s found in disk-cache!\n", cname);
+            metrics.recordHit(cached.length);
+            return cached;
+        }
 
-        if (instDir != null) {
-            if (cachedFile.exists() && referenceFile.exists()) {
+        // Misses on the same class name are serialized, so that concurrent loads only transform once
+        int stripe = cname.hashCode() & (LOCK_STRIPES - 1);
+        synchronized (locks[stripe]) {
+            // Optionally, also wait for other JVMs sharing the cache directory
+            FileLock fileLock = null;
+            if (cacheLock != null) {
                 try {
-                    byte[] origBytes = Files.readAllBytes(referenceFile.toPath());
-                    if (Arrays.equals(cbuf, origBytes)) {
-                        byte[] instBytes = Files.readAllBytes(cachedFile.toPath());
-                        //System.err.printf("[instrument] %s found in disk-cache!\n", cname);
-                        return instBytes;
-                    }
+                    fileLock = cacheLock.lock(stripe);
                 } catch (IOException e) {
-                    // Ignore, go to full instrumentation
+                    metrics.recordFailure("cache lock: " + e.getClass().getSimpleName());
+                }
+            }
+            try {
+                return transformAndCache(loader, cname, classBeingRedefined, d, cbuf, key);
+            } finally {
+                if (fileLock != null) {
+                    try {
+                        fileLock.release();
+                    } catch (IOException e) {
+                        // The lock goes away with the channel anyway
+                    }
                 }
             }
         }
+    }
+
+    private byte[] transformAndCache(ClassLoader loader, String cname, Class<?> classBeingRedefined,
+                                     ProtectionDomain d, byte[] cbuf, long key)
+            throws IllegalClassFormatException {
+        byte[] cached = cache != null ? cache.get(cname, key) : null;
+        if (cached != null) {
+            metrics.recordHit(cached.length);
+            return cached;
+        }
+        metrics.recordMiss();
 
-        byte[] ret = delegate.transform(loader, cname, classBeingRedefined, d, cbuf);
+        byte[] ret;
+        long start = System.nanoTime();
+        try {
+            ret = delegate.transform(loader, cname, classBeingRedefined, d, cbuf);
+        } catch (IllegalClassFormatException | RuntimeException e) {
+            metrics.recordFailure(e.getClass().getSimpleName());
+            throw e;
+        } finally {
+            metrics.recordTransform(shortName, cname, System.nanoTime() - start);
+        }
+        if (ret == null) {
+            // Transformers report their own errors and return null
+            metrics.recordFailure("no result");
+        }
 
 
-        if (instDir != null && ret != null) {
+        if (cache != null && ret != null) {
             try {
-                cachedFile.getParentFile().mkdirs();
-                referenceFile.getParentFile().mkdirs();
-                try(FileOutputStream out = new FileOutputStream(cachedFile)) {
-                    out.write(ret);
-                }
-                try(FileOutputStream out = new FileOutputStream(referenceFile)) {
-                    out.write(cbuf);
-                }
-
+                cache.put(cname, key, ret);
+                metrics.recordWrite(ret.length);
                 //System.err.printf("[instrument] %s instrumented successfully.\n", cname);
             } catch(Exception e) {
+                metrics.recordFailure("cache write: " + e.getClass().getSimpleName());
                 e.printStackTrace();
             }
         }
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which classes are instrumented, using include and exclude
+ * prefix rules compiled into a single trie.
+ *
+ * <p>A class is instrumented if it matches no exclude rule, and either
+ * no include rules are configured or it matches at least one of them.
+ * Rules are prefixes of class names, in either internal ("com/foo") or
+ * binary ("com.foo") form. Within a rule, <tt>*</tt> matches any run of
+ * characters within a package, and <tt>**</tt> matches any run of
+ * characters at all. The JDK, ASM and quickinstance itself are always
+ * excluded.</p>
+ *
+ * <p>Rules are configured through the comma-separated system properties
+ * <tt>quickinstance.includes</tt> and <tt>quickinstance.excludes</tt>, or
+ * through agent arguments of the form <tt>includes=a,b;excludes=c</tt>.
+ * Matching walks the class name once, advancing the set of live trie
+ * nodes by one character at a time.</p>
+ *
+ * @author Rohan Padhye
+ */
+public class ClassFilter {
+
+    private static final String[] builtinExcludes = {"[", "java", "sun", "com/sun", "jdk",
+            "org/objectweb/asm", "edu/berkeley/cs/quickinstance", "org/w3c"};
+
+    private static final int LOOP_NONE = 0;
+    private static final int LOOP_SEGMENT = 1;
+    private static final int LOOP_ANY = 2;
+
+    private static class Node {
+        char[] keys = new char[0];
+        Node[] children = new Node[0];
+        Node star;       // reached through '*'
+        Node doubleStar; // reached through '**'
+        int loop = LOOP_NONE;
+        int excludeRule = -1;
+        boolean include;
+
+        Node child(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node addChild(char c) {
+            Node child = child(c);
+            if (child == null) {
+                child = new Node();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = c;
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+
+    private final Node root = new Node();
+    private final List<String> excludes = new ArrayList<>();
+    private final List<LongAdder> skipped = new ArrayList<>();
+    private final LongAdder notIncluded = new LongAdder();
+    private boolean hasIncludes;
+
+    public ClassFilter(List<String> includes, List<String> excludes) {
+        for (String rule : builtinExcludes) {
+            addExclude(rule);
+        }
+        for (String rule : excludes) {
+            addExclude(rule);
+        }
+        for (String rule : includes) {
+            insert(rule).include = true;
+            hasIncludes = true;
+        }
+    }
+
+    /** Creates a filter from system properties and (optionally null) agent arguments. */
+    public static ClassFilter fromConfig(String agentArgs) {
+        List<String> includes = new ArrayList<>();
+        List<String> excludes = new ArrayList<>();
+        split(System.getProperty("quickinstance.includes"), includes);
+        split(System.getProperty("quickinstance.excludes"), excludes);
+        if (agentArgs != null) {
+            for (String arg : agentArgs.split(";")) {
+                if (arg.startsWith("includes=")) {
+                    split(arg.substring("includes=".length()), includes);
+                } else if (arg.startsWith("excludes=")) {
+                    split(arg.substring("excludes=".length()), excludes);
+                }
+            }
+        }
+        return new ClassFilter(includes, excludes);
+    }
+
+    private static void split(String rules, List<String> into) {
+        if (rules != null) {
+            for (String rule : rules.split(",")) {
+                if (!rule.trim().isEmpty()) {
+                    into.add(rule.trim());
+                }
+            }
+        }
+    }
+
+    private void addExclude(String rule) {
+        Node node = insert(rule);
+        if (node.excludeRule < 0) {
+            node.excludeRule = excludes.size();
+            excludes.add(rule);
+            skipped.add(new LongAdder());
+        }
+    }
+
+    private Node insert(String rule) {
+        rule = rule.replace('.', '/');
+        Node node = root;
+        for (int i = 0; i < rule.length(); i++) {
+            char c = rule.charAt(i);
+            if (c == '*') {
+                if (i + 1 < rule.length() && rule.charAt(i + 1) == '*') {
+                    if (node.doubleStar == null) {
+                        node.doubleStar = new Node();
+                        node.doubleStar.loop = LOOP_ANY;
+                    }
+                    node = node.doubleStar;
+                    i++;
+                } else {
+                    if (node.star == null) {
+                        node.star = new Node();
+                        node.star.loop = LOOP_SEGMENT;
+                    }
+                    node = node.star;
+                }
+            } else {
+                node = node.addChild(c);
+            }
+        }
+        return node;
+    }
+
+    /** A set of live trie nodes, closed under moves that consume no input. */
+    private static class States {
+        Node[] nodes = new Node[8];
+        int size;
+
+        void add(Node node) {
+            for (int i = 0; i < size; i++) {
+                if (nodes[i] == node) {
+                    return;
+                }
+            }
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, 2 * size);
+            }
+            nodes[size++] = node;
+            if (node.star != null) {
+                add(node.star);
+            }
+            if (node.doubleStar != null) {
+                add(node.doubleStar);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the class with the given internal name
+     * should not be instrumented.
+     */
+    public boolean shouldExclude(String cname) {
+        States current = new States();
+        States next = new States();
+        current.add(root);
+        boolean included = false;
+
+        for (int pos = 0; ; pos++) {
+            // Check for rules that terminate here, i.e. that match a prefix of the name
+            for (int i = 0; i < current.size; i++) {
+                Node node = current.nodes[i];
+                if (node.excludeRule >= 0) {
+                    skipped.get(node.excludeRule).increment();
+                    return true;
+                }
+                included |= node.include;
+            }
+            if (pos == cname.length() || current.size == 0) {
+                break;
+            }
+
+            // Advance all live nodes by one character
+            char c = cname.charAt(pos);
+            next.size = 0;
+            for (int i = 0; i < current.size; i++) {
+                Node node = current.nodes[i];
+                Node child = node.child(c);
+                if (child != null) {
+                    next.add(child);
+                }
+                if (node.loop == LOOP_ANY || (node.loop == LOOP_SEGMENT && c != '/')) {
+                    next.add(node);
+                }
+            }
+            States tmp = current;
+            current = next;
+            next = tmp;
+        }
+
+        if (hasIncludes && !included) {
+            notIncluded.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /** Prints the number of classes skipped by each rule that skipped any. */
+    public void printStats(PrintStream out) {
+        for (int i = 0; i < excludes.size(); i++) {
+            long count = skipped.get(i).sum();
+            if (count > 0) {
+                out.printf("filter: exclude %s skipped %d classes\n", excludes.get(i), count);
+            }
+        }
+        if (hasIncludes) {
+            out.printf("filter: %d classes matched no include\n", notIncluded.sum());
+        }
+    }
+}
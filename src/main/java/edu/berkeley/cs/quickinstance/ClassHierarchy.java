@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Answers questions about the class hierarchy at instrumentation time,
+ * without loading classes, by reading class file headers through a
+ * ClassLoader.
+ *
+ * <p>Only the header of each class file is parsed (access flags, super
+ * class and interfaces), so this also works for class files newer than
+ * ASM can read. Results are cached for the lifetime of the instance.</p>
+ *
+ * @author Rohan Padhye
+ */
+public class ClassHierarchy {
+
+    /** The header of a class file. */
+    public static final class Info {
+        public final String name;
+        public final int access;
+        public final String superName;
+        public final String[] interfaces;
+
+        Info(String name, int access, String superName, String[] interfaces) {
+            this.name = name;
+            this.access = access;
+            this.superName = superName;
+            this.interfaces = interfaces;
+        }
+
+        public boolean isInterface() {
+            return (access & Opcodes.ACC_INTERFACE) != 0;
+        }
+
+        public boolean isFinal() {
+            return (access & Opcodes.ACC_FINAL) != 0;
+        }
+    }
+
+    /** Placeholder for classes whose bytecode could not be found. */
+    private static final Info MISSING = new Info(null, 0, null, null);
+
+    private final ClassLoader loader;
+    private final Map<String, Info> cache = new HashMap<>();
+
+    public ClassHierarchy(ClassLoader loader) {
+        this.loader = loader != null ? loader : ClassLoader.getSystemClassLoader();
+    }
+
+    /**
+     * Returns the header of a class or interface, or <tt>null</tt> if it
+     * is an array type or its bytecode cannot be read.
+     */
+    public Info info(String type) {
+        if (type.startsWith("[")) {
+            return null;
+        }
+        Info info = cache.get(type);
+        if (info == null) {
+            try {
+                info = read(type);
+            } catch (IOException e) {
+                info = MISSING;
+            }
+            cache.put(type, info);
+        }
+        return info != MISSING ? info : null;
+    }
+
+    /** Returns true if the type is known to be an interface. */
+    public boolean isInterface(String type) {
+        Info info = info(type);
+        return info != null && info.isInterface();
+    }
+
+    /**
+     * Returns the type and all of its superclasses and superinterfaces,
+     * or <tt>null</tt> if any of them cannot be read.
+     */
+    public Set<String> supertypes(String type) {
+        Set<String> supertypes = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.push(type);
+        while (!pending.isEmpty()) {
+            String next = pending.pop();
+            if (supertypes.add(next)) {
+                Info info = info(next);
+                if (info == null) {
+                    return null;
+                }
+                if (info.superName != null) {
+                    pending.push(info.superName);
+                }
+                for (String itf : info.interfaces) {
+                    pending.push(itf);
+                }
+            }
+        }
+        return supertypes;
+    }
+
+    /**
+     * Returns the most specific common superclass of two classes, or
+     * <tt>java/lang/Object</tt> if either is an interface or cannot be
+     * read. Like {@link ClassWriter#getCommonSuperClass}, but without
+     * loading either class.
+     */
+    public String commonSuperClass(String type1, String type2) {
+        Set<String> supertypes1 = supertypes(type1);
+        Set<String> supertypes2 = supertypes(type2);
+        if (supertypes1 == null || supertypes2 == null) {
+            return "java/lang/Object";
+        }
+        if (supertypes2.contains(type1)) {
+            return type1;
+        }
+        if (supertypes1.contains(type2)) {
+            return type2;
+        }
+        if (isInterface(type1) || isInterface(type2)) {
+            return "java/lang/Object";
+        }
+        String type = type1;
+        while (!supertypes2.contains(type)) {
+            type = info(type).superName;
+        }
+        return type;
+    }
+
+    private Info read(String type) throws IOException {
+        InputStream is = loader.getResourceAsStream(type + ".class");
+        if (is == null) {
+            throw new IOException("Cannot find class file for " + type);
+        }
+        try (DataInputStream in = new DataInputStream(is)) {
+            if (in.readInt() != 0xCAFEBABE) {
+                throw new IOException("Not a class file: " + type);
+            }
+            in.readInt(); // minor and major version
+
+            // Keep only the UTF8 entries and the class entries pointing at them
+            int count = in.readUnsignedShort();
+            String[] utf8 = new String[count];
+            int[] classes = new int[count];
+            for (int i = 1; i < count; i++) {
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                    case 1: // Utf8
+                        utf8[i] = in.readUTF();
+                        break;
+                    case 7: // Class
+                        classes[i] = in.readUnsignedShort();
+                        break;
+                    case 8: // String
+                    case 16: // MethodType
+                    case 19: // Module
+                    case 20: // Package
+                        in.skipBytes(2);
+                        break;
+                    case 15: // MethodHandle
+                        in.skipBytes(3);
+                        break;
+                    case 3: // Integer
+                    case 4: // Float
+                    case 9: // Fieldref
+                    case 10: // Methodref
+                    case 11: // InterfaceMethodref
+                    case 12: // NameAndType
+                    case 17: // Dynamic
+                    case 18: // InvokeDynamic
+                        in.skipBytes(4);
+                        break;
+                    case 5: // Long
+                    case 6: // Double
+                        in.skipBytes(8);
+                        i++;
+                        break;
+                    default:
+                        throw new IOException("Bad constant pool tag " + tag + " in " + type);
+                }
+            }
+
+            int access = in.readUnsignedShort();
+            String name = utf8[classes[in.readUnsignedShort()]];
+            int superIndex = in.readUnsignedShort();
+            String superName = superIndex != 0 ? utf8[classes[superIndex]] : null;
+            String[] interfaces = new String[in.readUnsignedShort()];
+            for (int i = 0; i < interfaces.length; i++) {
+                interfaces[i] = utf8[classes[in.readUnsignedShort()]];
+            }
+            return new Info(name, access, superName, interfaces);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Command-line tool that instruments whole jars or class directories
+ * ahead of time, so that the application can run without the agent.
+ *
+ * <p>Usage: <tt>OfflineInstrumenter [-t transformer] [-cp classpath] -d outDir input...</tt></p>
+ *
+ * <p>Each input (a jar or a directory of class files) is written to
+ * <tt>outDir</tt> as a jar of the same name, with every class file
+ * replaced by its instrumented version. Classes are transformed in
+ * parallel on a fork-join pool. Type hierarchy queries made while
+ * computing frames are answered from the inputs and the classpath
+ * as resources, without loading any application class.</p>
+ *
+ * @author Rohan Padhye
+ */
+public class OfflineInstrumenter {
+
+    /** Number of classes below which a task is not split further. */
+    private static final int SPLIT_THRESHOLD = 8;
+
+    private final ClassFileTransformer transformer;
+    private final ClassFilter filter = ClassFilter.fromConfig(null);
+    private final ClassLoader loader;
+    private final ForkJoinPool pool;
+    private final AtomicInteger instrumented = new AtomicInteger();
+    private final AtomicInteger classes = new AtomicInteger();
+
+    public OfflineInstrumenter(ClassFileTransformer transformer, ClassLoader loader, ForkJoinPool pool) {
+        this.transformer = transformer;
+        this.loader = loader;
+        this.pool = pool;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String transformerName = "edu.berkeley.cs.quickinstance.profile.ProfilingTransformer";
+        String classpath = "";
+        String outDir = null;
+        List<File> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-t":
+                    transformerName = args[++i];
+                    break;
+                case "-cp":
+                    classpath = args[++i];
+                    break;
+                case "-d":
+                    outDir = args[++i];
+                    break;
+                default:
+                    inputs.add(new File(args[i]));
+            }
+        }
+        if (outDir == null || inputs.isEmpty()) {
+            System.err.println("Usage: OfflineInstrumenter [-t transformer] [-cp classpath] -d outDir input...");
+            System.exit(1);
+        }
+
+        // Type lookups see the inputs first, then the rest of the classpath, then the JDK
+        List<URL> urls = new ArrayList<>();
+        for (File input : inputs) {
+            urls.add(input.toURI().toURL());
+        }
+        for (String path : classpath.split(File.pathSeparator)) {
+            if (!path.isEmpty()) {
+                urls.add(new File(path).toURI().toURL());
+            }
+        }
+        ClassLoader loader = new URLClassLoader(urls.toArray(new URL[0]), null);
+
+        ClassFileTransformer transformer = (ClassFileTransformer) Class.forName(transformerName)
+                .getDeclaredConstructor().newInstance();
+        OfflineInstrumenter instrumenter = new OfflineInstrumenter(transformer, loader, new ForkJoinPool());
+
+        long start = System.currentTimeMillis();
+        new File(outDir).mkdirs();
+        for (File input : inputs) {
+            String name = input.getName().endsWith(".jar") ? input.getName() : input.getName() + ".jar";
+            instrumenter.instrument(input, new File(outDir, name));
+        }
+        System.err.printf("[instrument] %d of %d classes instrumented in %d ms\n",
+                instrumenter.instrumented.get(), instrumenter.classes.get(),
+                System.currentTimeMillis() - start);
+    }
+
+    /** Instruments a jar or class directory, writing the result as a jar. */
+    public void instrument(File input, File output) throws IOException {
+        List<Entry> entries = input.isDirectory() ? readDirectory(input) : readJar(input);
+        pool.invoke(new TransformTask(entries, 0, entries.size()));
+
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(output))) {
+            for (Entry entry : entries) {
+                out.putNextEntry(new JarEntry(entry.name));
+                if (entry.bytes != null) {
+                    out.write(entry.bytes);
+                }
+                out.closeEntry();
+            }
+        }
+    }
+
+    private static List<Entry> readJar(File input) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (JarFile jar = new JarFile(input)) {
+            for (JarEntry jarEntry : jar.stream().collect(Collectors.toList())) {
+                // Signatures are invalidated by instrumentation
+                if (isSignature(jarEntry.getName())) {
+                    continue;
+                }
+                byte[] bytes = null;
+                if (!jarEntry.isDirectory()) {
+                    try (InputStream in = jar.getInputStream(jarEntry)) {
+                        bytes = readFully(in);
+                    }
+                }
+                entries.add(new Entry(jarEntry.getName(), bytes));
+            }
+        }
+        return entries;
+    }
+
+    private static List<Entry> readDirectory(File input) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        Path root = input.toPath();
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted().collect(Collectors.toList())) {
+                if (path.equals(root)) {
+                    continue;
+                }
+                String name = root.relativize(path).toString().replace(File.separatorChar, '/');
+                if (Files.isDirectory(path)) {
+                    entries.add(new Entry(name + "/", null));
+                } else {
+                    entries.add(new Entry(name, Files.readAllBytes(path)));
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static boolean isSignature(String name) {
+        String upper = name.toUpperCase();
+        return upper.startsWith("META-INF/") &&
+                (upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC"));
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private void transform(Entry entry) {
+        if (entry.bytes == null || !entry.name.endsWith(".class") || entry.name.startsWith("META-INF/")) {
+            return;
+        }
+        String cname = entry.name.substring(0, entry.name.length() - ".class".length());
+        if (cname.endsWith("module-info") || filter.shouldExclude(cname)) {
+            return;
+        }
+
+        classes.incrementAndGet();
+        try {
+            byte[] ret = transformer.transform(loader, cname, null, null, entry.bytes);
+            if (ret != null) {
+                entry.bytes = ret;
+                instrumented.incrementAndGet();
+            }
+        } catch (IllegalClassFormatException | RuntimeException e) {
+            // Just use original bytes
+            System.err.printf("[instrument] %s could not be instrumented: %s\n", cname, e);
+        }
+    }
+
+    private static class Entry {
+        final String name;
+        byte[] bytes;
+
+        Entry(String name, byte[] bytes) {
+            this.name = name;
+            this.bytes = bytes;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private class TransformTask extends RecursiveAction {
+        private final List<Entry> entries;
+        private final int from;
+        private final int to;
+
+        TransformTask(List<Entry> entries, int from, int to) {
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SPLIT_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    transform(entries.get(i));
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new TransformTask(entries, from, mid), new TransformTask(entries, mid, to));
+            }
+        }
+    }
+}
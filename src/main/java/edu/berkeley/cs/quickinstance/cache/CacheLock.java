@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Coordinates cache misses between JVMs that share a cache directory.
+ *
+ * Each lock stripe is a one-byte region of a shared lock file, locked
+ * with {@link FileChannel#lock}. A JVM that is about to transform a class
+ * first locks its stripe and re-checks the cache; other JVMs missing on
+ * a class in the same stripe block until it is done, and then find its
+ * result in the cache instead of transforming the class again.
+ *
+ * <p>File locks are held on behalf of the whole JVM, so callers must
+ * ensure that at most one thread at a time locks a given stripe.</p>
+ *
+ * @author Rohan Padhye
+ */
+public class CacheLock {
+
+    private final FileChannel channel;
+
+    public CacheLock(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        this.channel = FileChannel.open(file.toPath(), CREATE, READ, WRITE);
+    }
+
+    /** Blocks until no other JVM holds the given stripe. */
+    public FileLock lock(int stripe) throws IOException {
+        return channel.lock(stripe, 1, false);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Command-line tool that keeps a cache directory bounded, by evicting
+ * entries that have not been used recently and then the least recently
+ * used entries until the cache fits within a size limit.
+ *
+ * <p>Usage: <tt>CacheMaintenance [-maxAge days] [-maxSize bytes[k|m|g]] cacheDir</tt></p>
+ *
+ * <p>Each class version of a directory cache is a separate entry. A pack
+ * file cannot be trimmed in place, so a pack and its index are evicted
+ * as a single entry. The caches set the modification time of an entry
+ * when it is used (to within an hour), so that is the time of last
+ * use. It is safe to run this while JVMs are using the cache: they
+ * either see an entry or miss and re-create it.</p>
+ *
+ * @author Rohan Padhye
+ */
+public class CacheMaintenance {
+
+    /** Temporary files older than this were left behind by a crashed writer. */
+    private static final long STALE_TMP_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static class Entry {
+        final List<Path> files = new ArrayList<>();
+        long size;
+        long lastUsed;
+
+        void add(Path file) throws IOException {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            files.add(file);
+            size += attrs.size();
+            // The caches record uses in the modification time; access times are not reliable
+            lastUsed = Math.max(lastUsed, attrs.lastModifiedTime().toMillis());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        long maxAge = Long.MAX_VALUE;
+        long maxSize = Long.MAX_VALUE;
+        File dir = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-maxAge":
+                    maxAge = TimeUnit.DAYS.toMillis(Long.parseLong(args[++i]));
+                    break;
+                case "-maxSize":
+                    maxSize = parseSize(args[++i]);
+                    break;
+                default:
+                    dir = new File(args[i]);
+            }
+        }
+        if (dir == null) {
+            System.err.println("Usage: CacheMaintenance [-maxAge days] [-maxSize bytes[k|m|g]] cacheDir");
+            System.exit(1);
+        }
+
+        List<Entry> entries = collect(dir.toPath());
+        long now = System.currentTimeMillis();
+        long total = 0;
+        for (Entry entry : entries) {
+            total += entry.size;
+        }
+
+        // Least recently used first
+        entries.sort(Comparator.comparingLong(e -> e.lastUsed));
+        int removed = 0;
+        long removedBytes = 0;
+        for (Entry entry : entries) {
+            if (now - entry.lastUsed <= maxAge && total - removedBytes <= maxSize) {
+                break;
+            }
+            for (Path file : entry.files) {
+                Files.deleteIfExists(file);
+            }
+            removed++;
+            removedBytes += entry.size;
+        }
+        removeEmptyDirectories(dir.toPath());
+
+        System.err.printf("[cache] removed %d entries (%d bytes); %d entries (%d bytes) remain\n",
+                removed, removedBytes, entries.size() - removed, total - removedBytes);
+    }
+
+    private static long parseSize(String size) {
+        char unit = Character.toLowerCase(size.charAt(size.length() - 1));
+        int shift = unit == 'k' ? 10 : unit == 'm' ? 20 : unit == 'g' ? 30 : 0;
+        String digits = shift == 0 ? size : size.substring(0, size.length() - 1);
+        return Long.parseLong(digits) << shift;
+    }
+
+    private static List<Entry> collect(Path root) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(root)) {
+            files = paths.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            try {
+                if (name.endsWith(".class")) {
+                    Entry entry = new Entry();
+                    entry.add(file);
+                    entries.add(entry);
+                } else if (name.endsWith(".pack")) {
+                    Entry entry = new Entry();
+                    entry.add(file);
+                    Path index = file.resolveSibling(name.substring(0, name.length() - ".pack".length()) + ".idx");
+                    if (Files.exists(index)) {
+                        entry.add(index);
+                    }
+                    entries.add(entry);
+                } else if (name.endsWith(".tmp")
+                        && now - Files.getLastModifiedTime(file).toMillis() > STALE_TMP_MILLIS) {
+                    Files.deleteIfExists(file);
+                }
+            } catch (IOException e) {
+                // Concurrently removed or replaced; leave it for the next run
+            }
+        }
+        return entries;
+    }
+
+    private static void removeEmptyDirectories(Path root) throws IOException {
+        List<Path> dirs;
+        try (Stream<Path> paths = Files.walk(root)) {
+            dirs = paths.filter(Files::isDirectory).collect(Collectors.toList());
+        }
+        // Deepest directories first
+        dirs.sort(Comparator.comparingInt(Path::getNameCount).reversed());
+        for (Path dir : dirs) {
+            if (!dir.equals(root)) {
+                try (Stream<Path> children = Files.list(dir)) {
+                    if (!children.findAny().isPresent()) {
+                        Files.deleteIfExists(dir);
+                    }
+                } catch (IOException e) {
+                    // Someone is writing into it
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.cache;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the order in which classes are loaded, and on the next run
+ * prefetches their cache entries into a {@link MemoryCache} on
+ * background threads in that same order.
+ *
+ * <p>The order file has one line per class load, of the form
+ * <tt>key cname</tt>, where the key is the hex-encoded content key.
+ * Only the first {@value #MAX_LOADS} loads are recorded. Prefetching
+ * stops at the byte budget, and {@link MemoryCache#prefetch} never
+ * evicts, so a full segment does not push out entries that were just
+ * prefetched into it.</p>
+ *
+ * @author Rohan Padhye
+ */
+public class CachePrefetcher {
+
+    /** Maximum number of class loads recorded per run. */
+    private static final int MAX_LOADS = 1 << 16;
+
+    private final File orderFile;
+    private final MemoryCache cache;
+    private final long maxBytes;
+    private final Queue<String> loadOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger recorded = new AtomicInteger();
+
+    /**
+     * @param orderFile the file recording the load order of previous runs
+     * @param cache     the memory tier to prefetch into
+     * @param maxBytes  the maximum number of bytes to prefetch, usually the
+     *                  size of the memory tier
+     */
+    public CachePrefetcher(File orderFile, MemoryCache cache, long maxBytes) {
+        this.orderFile = orderFile;
+        this.cache = cache;
+        this.maxBytes = maxBytes;
+    }
+
+    /** Records a class load for the next run. */
+    public void recordLoad(String cname, long key) {
+        if (recorded.get() >= MAX_LOADS || recorded.getAndIncrement() >= MAX_LOADS) {
+            return;
+        }
+        loadOrder.add(Long.toHexString(key) + " " + cname);
+    }
+
+    /** Writes the load order recorded in this run, replacing that of the previous run. */
+    public void saveLoadOrder() throws IOException {
+        File tmpFile = new File(orderFile.getPath() + ".tmp");
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(tmpFile))) {
+            for (String line : loadOrder) {
+                out.write(line);
+                out.newLine();
+            }
+        }
+        Files.move(tmpFile.toPath(), orderFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Starts daemon threads that prefetch the entries recorded in the
+     * previous run. The threads share a single cursor over the load
+     * order, so that earlier classes are fetched first.
+     */
+    public void start(int threads) {
+        if (!orderFile.exists()) {
+            return;
+        }
+        List<String> order = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(orderFile))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                order.add(line);
+            }
+        } catch (IOException e) {
+            return;
+        }
+
+        AtomicInteger cursor = new AtomicInteger();
+        AtomicLong fetched = new AtomicLong();
+        Runnable worker = () -> {
+            int i;
+            while ((i = cursor.getAndIncrement()) < order.size() && fetched.get() < maxBytes) {
+                String line = order.get(i);
+                int space = line.indexOf(' ');
+                if (space <= 0) {
+                    continue;
+                }
+                try {
+                    long key = Long.parseUnsignedLong(line.substring(0, space), 16);
+                    fetched.addAndGet(cache.prefetch(line.substring(space + 1), key));
+                } catch (RuntimeException e) {
+                    // Corrupt line or unreadable entry; the class load path will deal with it
+                }
+            }
+        };
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(worker, "quickinstance-prefetch-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+}
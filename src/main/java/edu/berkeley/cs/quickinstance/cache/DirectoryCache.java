@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A cache that stores one file per class version under a directory.
+ *
+ * The versions of a class <tt>a/b/C</tt> live in the directory
+ * <tt>a/b/C.v</tt>, one file per content key, named by the key in hex.
+ * Each file starts with the 8-byte content key, followed by the
+ * instrumented class bytes. Different bytes loaded under the same class
+ * name (e.g. by different class loaders or applications) therefore do
+ * not evict each other. When a class has more than the configured
+ * number of versions, the least recently used ones are deleted.
+ *
+ * <p>A hit sets the modification time of the entry, at most once every
+ * {@value #TOUCH_INTERVAL_MILLIS} ms, so that the modification time
+ * records when the entry was last used; access times are not reliable
+ * on file systems mounted with <tt>relatime</tt> or <tt>noatime</tt>.
+ * The time of the last touch is kept in memory, so later hits on the
+ * same entry within the interval do not look at the file again.</p>
+ *
+ * @author Rohan Padhye
+ */
+public class DirectoryCache implements ClassCache {
+
+    /** Size of the content key stored at the head of every cache file. */
+    private static final int KEY_BYTES = 8;
+
+    /** Suffix of the directory holding the versions of a class. */
+    public static final String VERSIONS_SUFFIX = ".v";
+
+    /** Minimum time between two updates of the last-use time of an entry. */
+    static final long TOUCH_INTERVAL_MILLIS = 60 * 60 * 1000;
+
+    private final File root;
+    private final int maxVersions;
+
+    /** When this instance last recorded a use of each entry it has hit. */
+    private final ConcurrentHashMap<File, Long> lastTouched = new ConcurrentHashMap<>();
+
+    /**
+     * @param root        the directory under which entries are stored
+     * @param maxVersions the number of versions to retain per class name
+     */
+    public DirectoryCache(File root, int maxVersions) {
+        this.root = root;
+        this.maxVersions = maxVersions;
+    }
+
+    private File fileFor(String cname, long key) {
+        return new File(root, cname + VERSIONS_SUFFIX + "/" + Long.toHexString(key) + ".class");
+    }
+
+    @Override
+    public byte[] get(String cname, long key) {
+        try {
+            File file = fileFor(cname, key);
+            byte[] entry = Files.readAllBytes(file.toPath());
+            if (entry.length > KEY_BYTES && readKey(entry) == key) {
+                touchIfDue(file);
+                return Arrays.copyOfRange(entry, KEY_BYTES, entry.length);
+            }
+        } catch (IOException e) {
+            // Not cached (or unreadable)
+        }
+        return null;
+    }
+
+    @Override
+    public void put(String cname, long key, byte[] bytes) throws IOException {
+        File cachedFile = fileFor(cname, key);
+        cachedFile.getParentFile().mkdirs();
+
+        // Write to a uniquely named temporary file first, so that readers in this
+        // or any other JVM never see a partial entry
+        File tmpFile = Files.createTempFile(cachedFile.getParentFile().toPath(),
+                cachedFile.getName(), ".tmp").toFile();
+        tmpFile.setReadable(true, false);
+        try(DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeLong(key);
+            out.write(bytes);
+        }
+        try {
+            Files.move(tmpFile.toPath(), cachedFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmpFile.delete();
+        }
+
+        prune(cachedFile.getParentFile());
+    }
+
+    private void touchIfDue(File file) {
+        long now = System.currentTimeMillis();
+        Long touched = lastTouched.get(file);
+        if (touched == null || now - touched > TOUCH_INTERVAL_MILLIS) {
+            lastTouched.put(file, now);
+            touch(file);
+        }
+    }
+
+    /** Records a use of a cache file in its modification time. */
+    static void touch(File file) {
+        long now = System.currentTimeMillis();
+        if (now - file.lastModified() > TOUCH_INTERVAL_MILLIS) {
+            // Fails harmlessly if another JVM has just removed or replaced the file
+            file.setLastModified(now);
+        }
+    }
+
+    /** Deletes the least recently used versions beyond the retention limit. */
+    private void prune(File versionsDir) {
+        File[] versions = versionsDir.listFiles((dir, name) -> name.endsWith(".class"));
+        if (versions == null || versions.length <= maxVersions) {
+            return;
+        }
+        Arrays.sort(versions, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < versions.length - maxVersions; i++) {
+            // Another JVM may be pruning too, in which case this fails harmlessly
+            versions[i].delete();
+        }
+    }
+
+    private static long readKey(byte[] entry) {
+        long key = 0;
+        for (int i = 0; i < KEY_BYTES; i++) {
+            key = (key << 8) | (entry[i] & 0xFF);
+        }
+        return key;
+    }
+}
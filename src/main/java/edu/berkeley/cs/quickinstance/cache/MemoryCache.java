@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.cache;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded in-memory cache tier in front of another {@link ClassCache}.
+ *
+ * Entries are keyed by content key only, so the same class bytes loaded
+ * through many isolated class loaders are served from memory after the
+ * first load. The tier is split into segments, each an access-ordered
+ * LRU map with its own share of the byte budget, so that concurrent
+ * lookups rarely contend on the same monitor.
+ *
+ * @author Rohan Padhye
+ */
+public class MemoryCache implements ClassCache {
+
+    /** Number of independently locked segments; must be a power of two. */
+    private static final int SEGMENTS = 16;
+
+    private final ClassCache delegate;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * @param delegate the slower cache to consult on a miss
+     * @param maxBytes the maximum total size of cached class files
+     */
+    public MemoryCache(ClassCache delegate, long maxBytes) {
+        this.delegate = delegate;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxBytes / SEGMENTS);
+        }
+    }
+
+    private Segment segmentFor(long key) {
+        return segments[(int) (key ^ (key >>> 32)) & (SEGMENTS - 1)];
+    }
+
+    /** Returns the number of lookups served from memory. */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /** Returns the total size of the class files held in memory. */
+    long bytes() {
+        long total = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                total += segment.bytes;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public byte[] get(String cname, long key) {
+        Segment segment = segmentFor(key);
+        byte[] bytes;
+        synchronized (segment) {
+            bytes = segment.get(key);
+        }
+        if (bytes != null) {
+            hits.increment();
+            return bytes.clone();
+        }
+
+        bytes = delegate.get(cname, key);
+        if (bytes != null) {
+            synchronized (segment) {
+                segment.add(key, bytes.clone());
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Loads an entry from the delegate into memory without counting a hit.
+     * Prefetching never evicts: an entry that does not fit in what is left
+     * of its segment's budget is not loaded.
+     *
+     * @return the number of bytes loaded, or zero if the entry was already
+     *         in memory, is not in the delegate, or does not fit
+     */
+    public int prefetch(String cname, long key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            if (segment.containsKey(key) || segment.bytes >= segment.maxBytes) {
+                return 0;
+            }
+        }
+        byte[] bytes = delegate.get(cname, key);
+        if (bytes == null) {
+            return 0;
+        }
+        synchronized (segment) {
+            if (segment.bytes + bytes.length > segment.maxBytes) {
+                return 0;
+            }
+            segment.add(key, bytes);
+        }
+        return bytes.length;
+    }
+
+    @Override
+    public void put(String cname, long key, byte[] bytes) throws IOException {
+        delegate.put(cname, key, bytes);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.add(key, bytes.clone());
+        }
+    }
+
+    /** An LRU map bounded by the total length of its values. */
+    @SuppressWarnings("serial")
+    private static class Segment extends LinkedHashMap<Long, byte[]> {
+        private final long maxBytes;
+        private long bytes;
+
+        Segment(long maxBytes) {
+            super(16, 0.75f, true);
+            this.maxBytes = maxBytes;
+        }
+
+        void add(long key, byte[] value) {
+            if (value.length > maxBytes) {
+                return;
+            }
+            byte[] old = put(key, value);
+            if (old != null) {
+                bytes -= old.length;
+            }
+            bytes += value.length;
+
+            // Evict least-recently used entries until we are within budget
+            while (bytes > maxBytes) {
+                Map.Entry<Long, byte[]> eldest = entrySet().iterator().next();
+                bytes -= eldest.getValue().length;
+                remove(eldest.getKey());
+            }
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A cache that stores all entries in a single append-only pack file,
+ * together with an open-addressing hash index keyed by content key.
+ *
+ * Both files are memory-mapped, so that a lookup is an index probe
+ * followed by a copy out of mapped memory, without any system calls.
+ *
+ * <p>The pack file consists of a 32-byte header (magic, version, the
+ * end offset of the last complete entry and the generation of the index
+ * file), followed by entries of the form
+ * (key, length, bytes). The index file consists of a 16-byte header
+ * (magic, version, capacity and count), followed by (key, offset) slots.
+ * An offset of zero marks an empty slot. The index can always be rebuilt
+ * from the pack, so a missing or corrupt index is silently regenerated.</p>
+ *
+ * <p>Lookups do not take any lock. Appends are serialized on the cache
+ * instance, and are only made visible to readers by publishing the new
+ * end of the pack after both the entry and its index slot are written.</p>
+ *
+ * <p>Several JVMs may share the same pack. Appends hold an exclusive
+ * {@link FileLock} on the pack header, and first catch up with whatever
+ * other processes have appended. Since the files are mapped shared, a
+ * lookup notices appends by other processes through the end offset in
+ * the header, and remaps the pack or reopens the index (whose generation
+ * changes whenever it is regrown) before probing.</p>
+ *
+ * @author Rohan Padhye
+ */
+public class PackedCache implements ClassCache {
+
+    private static final int PACK_MAGIC = 0x5149504B;  // "QIPK"
+    private static final int INDEX_MAGIC = 0x51494958; // "QIIX"
+    private static final int FORMAT_VERSION = 2;
+
+    private static final int PACK_HEADER = 32;
+    private static final int END_POS = 8;
+    private static final int GENERATION_POS = 16;
+    private static final int ENTRY_HEADER = 12;
+
+    private static final int INDEX_HEADER = 16;
+    private static final int CAPACITY_POS = 8;
+    private static final int COUNT_POS = 12;
+    private static final int SLOT_BYTES = 16;
+
+    private static final int MIN_PACK_SIZE = 1 << 20;
+    private static final int MIN_INDEX_SLOTS = 1 << 12;
+
+    private final File packFile;
+    private final File indexFile;
+    private final FileChannel packChannel;
+    private FileChannel indexChannel;
+
+    private volatile MappedByteBuffer pack;
+    private volatile MappedByteBuffer index;
+
+    /** End of the last published entry; entries at or beyond this offset are invisible to readers. */
+    private volatile int end;
+
+    /** Generation of the index file that is currently mapped. */
+    private int generation;
+
+    /** When this instance last recorded a use of the pack in its modification time. */
+    private volatile long lastTouched;
+
+    public PackedCache(File dir, String name) throws IOException {
+        dir.mkdirs();
+        this.packFile = new File(dir, name + ".pack");
+        this.indexFile = new File(dir, name + ".idx");
+        this.packChannel = FileChannel.open(packFile.toPath(), CREATE, READ, WRITE);
+
+        // Another JVM may be initializing the same pack
+        FileLock lock = packChannel.lock(0, PACK_HEADER, false);
+        try {
+            long size = packChannel.size();
+            if (size >= PACK_HEADER && size <= Integer.MAX_VALUE) {
+                mapPack((int) size);
+            }
+            if (size >= PACK_HEADER && size <= Integer.MAX_VALUE
+                    && pack.getInt(0) == PACK_MAGIC && pack.getInt(4) == FORMAT_VERSION
+                    && pack.getLong(END_POS) >= PACK_HEADER && pack.getLong(END_POS) <= size) {
+                end = (int) pack.getLong(END_POS);
+                generation = pack.getInt(GENERATION_POS);
+                if (!loadIndex()) {
+                    rebuildIndex();
+                }
+            } else {
+                // Missing, foreign or corrupt pack: start from scratch
+                packChannel.truncate(0);
+                mapPack(MIN_PACK_SIZE);
+                pack.putInt(0, PACK_MAGIC);
+                pack.putInt(4, FORMAT_VERSION);
+                pack.putLong(END_POS, PACK_HEADER);
+                end = PACK_HEADER;
+                rebuildIndex();
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    private void mapPack(int size) throws IOException {
+        pack = packChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private static int slotOf(long key, int mask) {
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+
+    @Override
+    public byte[] get(String cname, long key) {
+        // Catch up with entries appended by other processes
+        if (pack.getLong(END_POS) > end) {
+            try {
+                synchronized (this) {
+                    refresh(false);
+                }
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        // Read the published end first, so that everything before it is visible
+        final int end = this.end;
+        final MappedByteBuffer index = this.index;
+        final MappedByteBuffer pack = this.pack;
+
+        final int capacity = index.getInt(CAPACITY_POS);
+        final int mask = capacity - 1;
+        for (int i = slotOf(key, mask), n = 0; n < capacity; i = (i + 1) & mask, n++) {
+            int slot = INDEX_HEADER + i * SLOT_BYTES;
+            long off = index.getLong(slot + 8);
+            if (off == 0) {
+                return null;
+            }
+            if (index.getLong(slot) == key) {
+                if (off < PACK_HEADER || off + ENTRY_HEADER > end || pack.getLong((int) off) != key) {
+                    return null;
+                }
+                int len = pack.getInt((int) off + 8);
+                if (len < 0 || off + ENTRY_HEADER + len > end) {
+                    return null;
+                }
+                byte[] bytes = new byte[len];
+                ByteBuffer buf = pack.duplicate();
+                buf.position((int) off + ENTRY_HEADER);
+                buf.get(bytes);
+                touch();
+                return bytes;
+            }
+        }
+        return null;
+    }
+
+    /** Records a use of the pack, for {@link CacheMaintenance}. */
+    private void touch() {
+        long now = System.currentTimeMillis();
+        if (now - lastTouched > DirectoryCache.TOUCH_INTERVAL_MILLIS) {
+            lastTouched = now;
+            DirectoryCache.touch(packFile);
+        }
+    }
+
+    /**
+     * Brings the mappings up to date with appends made by other processes.
+     * Must be called while holding the monitor of this cache. The index is
+     * only rebuilt if the caller also holds the file lock.
+     */
+    private void refresh(boolean locked) throws IOException {
+        long fileEnd = pack.getLong(END_POS);
+        if (fileEnd > pack.capacity()) {
+            mapPack((int) Math.min(packChannel.size(), Integer.MAX_VALUE));
+        }
+        if (pack.getInt(GENERATION_POS) != generation) {
+            int fileGeneration = pack.getInt(GENERATION_POS);
+            if (loadIndex()) {
+                generation = fileGeneration;
+            } else if (locked) {
+                rebuildIndex();
+            }
+        }
+        if (fileEnd > end) {
+            end = (int) fileEnd;
+        }
+    }
+
+    private boolean contains(long key) {
+        final int capacity = index.getInt(CAPACITY_POS);
+        final int mask = capacity - 1;
+        for (int i = slotOf(key, mask), n = 0; n < capacity; i = (i + 1) & mask, n++) {
+            int slot = INDEX_HEADER + i * SLOT_BYTES;
+            long off = index.getLong(slot + 8);
+            if (off == 0) {
+                return false;
+            }
+            if (index.getLong(slot) == key && off < end) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void put(String cname, long key, byte[] bytes) throws IOException {
+        FileLock lock = packChannel.lock(0, PACK_HEADER, false);
+        try {
+            refresh(true);
+            if (contains(key)) {
+                // Another process got here first
+                return;
+            }
+
+            final int off = end;
+            final long newEnd = (long) off + ENTRY_HEADER + bytes.length;
+            if (newEnd > Integer.MAX_VALUE) {
+                throw new IOException("Pack file is full: " + packFile);
+            }
+
+            // Grow the mapping by doubling, so that appends are amortized
+            if (newEnd > pack.capacity()) {
+                long size = pack.capacity();
+                while (size < newEnd) {
+                    size *= 2;
+                }
+                mapPack((int) Math.min(size, Integer.MAX_VALUE));
+            }
+
+            // Append the entry, then index it, then publish it
+            pack.putLong(off, key);
+            pack.putInt(off + 8, bytes.length);
+            ByteBuffer buf = pack.duplicate();
+            buf.position(off + ENTRY_HEADER);
+            buf.put(bytes);
+
+            insert(key, off);
+            pack.putLong(END_POS, newEnd);
+            end = (int) newEnd;
+        } finally {
+            lock.release();
+        }
+    }
+
+    private void insert(long key, long off) throws IOException {
+        int capacity = index.getInt(CAPACITY_POS);
+        int count = index.getInt(COUNT_POS);
+        if ((count + 1) * 4L > capacity * 3L) {
+            writeIndex(capacity * 2, indexEntries());
+            capacity = index.getInt(CAPACITY_POS);
+        }
+
+        final int mask = capacity - 1;
+        for (int i = slotOf(key, mask); ; i = (i + 1) & mask) {
+            int slot = INDEX_HEADER + i * SLOT_BYTES;
+            long existing = index.getLong(slot + 8);
+            if (existing == 0 || index.getLong(slot) == key) {
+                index.putLong(slot, key);
+                index.putLong(slot + 8, off);
+                if (existing == 0) {
+                    index.putInt(COUNT_POS, count + 1);
+                }
+                return;
+            }
+        }
+    }
+
+    /** Returns the (key, offset) pairs of all occupied index slots, interleaved. */
+    private long[] indexEntries() {
+        int capacity = index.getInt(CAPACITY_POS);
+        long[] entries = new long[2 * index.getInt(COUNT_POS)];
+        int n = 0;
+        for (int i = 0; i < capacity && n < entries.length; i++) {
+            int slot = INDEX_HEADER + i * SLOT_BYTES;
+            long off = index.getLong(slot + 8);
+            if (off != 0) {
+                entries[n++] = index.getLong(slot);
+                entries[n++] = off;
+            }
+        }
+        return entries;
+    }
+
+    private boolean loadIndex() throws IOException {
+        if (!indexFile.exists()) {
+            return false;
+        }
+        FileChannel channel = FileChannel.open(indexFile.toPath(), READ, WRITE);
+        long size = channel.size();
+        if (size >= INDEX_HEADER && size <= Integer.MAX_VALUE) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            int capacity = buf.getInt(CAPACITY_POS);
+            if (buf.getInt(0) == INDEX_MAGIC && buf.getInt(4) == FORMAT_VERSION
+                    && capacity > 0 && Integer.bitCount(capacity) == 1
+                    && size >= INDEX_HEADER + (long) capacity * SLOT_BYTES) {
+                if (indexChannel != null) {
+                    indexChannel.close();
+                }
+                indexChannel = channel;
+                index = buf;
+                return true;
+            }
+        }
+        channel.close();
+        return false;
+    }
+
+    private void rebuildIndex() throws IOException {
+        long[] entries = new long[64];
+        int n = 0;
+        for (int off = PACK_HEADER; off + ENTRY_HEADER <= end; ) {
+            int len = pack.getInt(off + 8);
+            if (len < 0 || (long) off + ENTRY_HEADER + len > end) {
+                break;
+            }
+            if (n == entries.length) {
+                entries = Arrays.copyOf(entries, 2 * n);
+            }
+            entries[n++] = pack.getLong(off);
+            entries[n++] = off;
+            off += ENTRY_HEADER + len;
+        }
+        int capacity = MIN_INDEX_SLOTS;
+        while (capacity * 3L < n * 2L) {
+            capacity *= 2;
+        }
+        writeIndex(capacity, Arrays.copyOf(entries, n));
+    }
+
+    /**
+     * Writes a fresh index to a temporary file and moves it into place,
+     * so that readers holding the old mapping are never disturbed.
+     */
+    private void writeIndex(int capacity, long[] entries) throws IOException {
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        FileChannel channel = FileChannel.open(tmpFile.toPath(), CREATE, TRUNCATE_EXISTING, READ, WRITE);
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                INDEX_HEADER + (long) capacity * SLOT_BYTES);
+        buf.putInt(0, INDEX_MAGIC);
+        buf.putInt(4, FORMAT_VERSION);
+        buf.putInt(CAPACITY_POS, capacity);
+
+        final int mask = capacity - 1;
+        int count = 0;
+        for (int e = 0; e < entries.length; e += 2) {
+            for (int i = slotOf(entries[e], mask); ; i = (i + 1) & mask) {
+                int slot = INDEX_HEADER + i * SLOT_BYTES;
+                if (buf.getLong(slot + 8) == 0) {
+                    buf.putLong(slot, entries[e]);
+                    buf.putLong(slot + 8, entries[e + 1]);
+                    count++;
+                    break;
+                } else if (buf.getLong(slot) == entries[e]) {
+                    // Later entries for the same key win
+                    buf.putLong(slot + 8, entries[e + 1]);
+                    break;
+                }
+            }
+        }
+        buf.putInt(COUNT_POS, count);
+
+        Files.move(tmpFile.toPath(), indexFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        generation++;
+        pack.putInt(GENERATION_POS, generation);
+        if (indexChannel != null) {
+            indexChannel.close();
+        }
+        indexChannel = channel;
+        index = buf;
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.patch;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.berkeley.cs.quickinstance.ClassHierarchy;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Finds <tt>instanceof</tt> tests that guard a <tt>checkcast</tt> of the
+ * same local variable, as in <tt>if (x instanceof T) { T t = (T) x; }</tt>.
+ *
+ * <p>The cast cannot simply be removed, because the verifier does not
+ * know what the test proved. Instead, such tests are left as native
+ * <tt>instanceof</tt>, which lets the JIT prove the dominated cast
+ * redundant and drop it; a patched test would hide that fact, and the
+ * type would be checked twice.</p>
+ *
+ * <p>This is a forward must-analysis over the control-flow graph. A
+ * fact <tt>(local, type)</tt> is generated on the taken side of an
+ * <tt>aload; instanceof; ifeq/ifne</tt> sequence, killed by any store
+ * to the local, and kept at a join only if it holds on every incoming
+ * edge. Exception handlers start with no facts.</p>
+ *
+ * @author Rohan Padhye
+ */
+final class CastFuser {
+    private CastFuser() {}
+
+    private static final LongAdder tests = new LongAdder();
+    private static final LongAdder casts = new LongAdder();
+
+    static {
+        if (TypeRegistry.stats) {
+            PrintStream out = System.err;
+            Runtime.getRuntime().addShutdownHook(new Thread(() ->
+                    out.printf("fused instanceof sites: tests kept native=%d, casts guarded=%d\n",
+                            tests.sum(), casts.sum())));
+        }
+    }
+
+    /**
+     * Facts that hold before an instruction, mapping <tt>"local type"</tt>
+     * to the tests that may have established the fact.
+     */
+    private static final class Facts {
+        private final Map<String, Set<AbstractInsnNode>> facts = new HashMap<>();
+
+        Facts() {}
+
+        Facts(Facts other) {
+            for (Map.Entry<String, Set<AbstractInsnNode>> fact : other.facts.entrySet()) {
+                facts.put(fact.getKey(), new HashSet<>(fact.getValue()));
+            }
+        }
+
+        Set<Map.Entry<String, Set<AbstractInsnNode>>> entries() {
+            return facts.entrySet();
+        }
+
+        void add(int local, TypeInsnNode test) {
+            facts.computeIfAbsent(local + " " + test.desc, f -> new HashSet<>()).add(test);
+        }
+
+        void kill(int local) {
+            facts.keySet().removeIf(fact -> fact.startsWith(local + " "));
+        }
+
+        /** Intersects the facts, and returns true if anything changed. */
+        boolean meet(Facts other) {
+            boolean changed = facts.keySet().retainAll(other.facts.keySet());
+            for (Map.Entry<String, Set<AbstractInsnNode>> fact : facts.entrySet()) {
+                changed |= fact.getValue().addAll(other.facts.get(fact.getKey()));
+            }
+            return changed;
+        }
+    }
+
+    /**
+     * Returns the <tt>instanceof</tt> instructions in a method that guard
+     * a cast of the same value to the same type, or a supertype of it.
+     */
+    static Set<AbstractInsnNode> guardingTests(String owner, MethodNode methodNode, ClassHierarchy hierarchy) {
+        InsnList instructions = methodNode.instructions;
+        AbstractInsnNode[] insns = instructions.toArray();
+        boolean hasCast = false;
+        for (AbstractInsnNode insn : insns) {
+            hasCast |= insn.getOpcode() == CHECKCAST;
+        }
+        if (!hasCast) {
+            return Collections.emptySet();
+        }
+
+        // Let the analyzer find the edges of the control-flow graph
+        List<List<Integer>> successors = new ArrayList<>();
+        for (int i = 0; i < insns.length; i++) {
+            successors.add(new ArrayList<>());
+        }
+        Set<Integer> handlers = new HashSet<>();
+        try {
+            new Analyzer<BasicValue>(new BasicInterpreter()) {
+                @Override
+                protected void newControlFlowEdge(int insn, int successor) {
+                    successors.get(insn).add(successor);
+                }
+
+                @Override
+                protected boolean newControlFlowExceptionEdge(int insn, int successor) {
+                    handlers.add(successor);
+                    return true;
+                }
+            }.analyze(owner, methodNode);
+        } catch (AnalyzerException | RuntimeException e) {
+            return Collections.emptySet();
+        }
+
+        Facts[] before = new Facts[insns.length];
+        Deque<Integer> worklist = new ArrayDeque<>();
+        before[0] = new Facts();
+        worklist.add(0);
+        for (int handler : handlers) {
+            before[handler] = new Facts();
+            worklist.add(handler);
+        }
+        while (!worklist.isEmpty()) {
+            int i = worklist.poll();
+            Facts after = new Facts(before[i]);
+            AbstractInsnNode insn = insns[i];
+            if (insn instanceof VarInsnNode && insn.getOpcode() >= ISTORE && insn.getOpcode() <= ASTORE) {
+                int local = ((VarInsnNode) insn).var;
+                after.kill(local);
+                if (insn.getOpcode() == LSTORE || insn.getOpcode() == DSTORE) {
+                    after.kill(local + 1);
+                }
+            } else if (insn instanceof IincInsnNode) {
+                after.kill(((IincInsnNode) insn).var);
+            }
+
+            TypeInsnNode test = guardedTest(insn);
+            for (int successor : successors.get(i)) {
+                Facts edge = after;
+                if (test != null && (successor == i + 1) == (insn.getOpcode() == IFEQ)
+                        && instructions.indexOf(((JumpInsnNode) insn).label) != i + 1) {
+                    edge = new Facts(after);
+                    edge.add(((VarInsnNode) test.getPrevious()).var, test);
+                }
+                if (handlers.contains(successor)) {
+                    continue;
+                }
+                if (before[successor] == null) {
+                    before[successor] = new Facts(edge);
+                    worklist.add(successor);
+                } else if (before[successor].meet(edge)) {
+                    worklist.add(successor);
+                }
+            }
+        }
+
+        Set<AbstractInsnNode> guarding = new HashSet<>();
+        for (int i = 1; i < insns.length; i++) {
+            AbstractInsnNode load = insns[i - 1];
+            if (insns[i].getOpcode() != CHECKCAST || load.getOpcode() != ALOAD || before[i - 1] == null) {
+                continue;
+            }
+            String cast = ((TypeInsnNode) insns[i]).desc;
+            int local = ((VarInsnNode) load).var;
+            boolean guarded = false;
+            for (Map.Entry<String, Set<AbstractInsnNode>> fact : before[i - 1].entries()) {
+                String key = fact.getKey();
+                if (key.startsWith(local + " ") && isSubtype(hierarchy, key.substring(key.indexOf(' ') + 1), cast)) {
+                    guarding.addAll(fact.getValue());
+                    guarded = true;
+                }
+            }
+            if (guarded) {
+                casts.increment();
+            }
+        }
+        tests.add(guarding.size());
+        return guarding;
+    }
+
+    /**
+     * Returns the test if the instruction is the branch of an
+     * <tt>aload; instanceof; ifeq/ifne</tt> sequence, with nothing else
+     * (not even a label) in between.
+     */
+    private static TypeInsnNode guardedTest(AbstractInsnNode insn) {
+        if (insn.getOpcode() != IFEQ && insn.getOpcode() != IFNE) {
+            return null;
+        }
+        AbstractInsnNode test = insn.getPrevious();
+        if (test == null || test.getOpcode() != INSTANCEOF) {
+            return null;
+        }
+        AbstractInsnNode load = test.getPrevious();
+        if (load == null || load.getOpcode() != ALOAD) {
+            return null;
+        }
+        return (TypeInsnNode) test;
+    }
+
+    private static boolean isSubtype(ClassHierarchy hierarchy, String type, String supertype) {
+        if (type.equals(supertype)) {
+            return true;
+        }
+        Set<String> supertypes = hierarchy.supertypes(type);
+        return supertypes != null && supertypes.contains(supertype);
+    }
+}
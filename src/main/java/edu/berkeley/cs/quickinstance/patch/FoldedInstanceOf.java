@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.patch;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Modifier;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Links <tt>instanceof</tt> tests that the {@link InstanceOfFolder}
+ * decided from the class hierarchy seen at instrumentation time.
+ *
+ * <p>Instrumented classes are cached by their own bytes only, so the
+ * classes a fold was decided from may have changed since. Each folded
+ * test is therefore an <tt>invokedynamic</tt> instruction, and the
+ * fact it relies on is checked against the loaded classes when the
+ * site is first run. If the fact still holds, the site is linked to
+ * the folded test, which the JIT inlines as if it had been folded in
+ * the bytecode; if not, to a plain {@link Class#isInstance}.</p>
+ *
+ * @author Rohan Padhye
+ */
+public final class FoldedInstanceOf {
+    private FoldedInstanceOf() {}
+
+    /** The operand's type is a subtype of the target, so the test is a null check. */
+    static final int NON_NULL = 1;
+    /** No object can have both the operand's type and the target type. */
+    static final int FALSE = 2;
+
+    private static final MethodHandle IS_NON_NULL;
+    private static final MethodHandle IS_INSTANCE;
+    private static final MethodHandle ALWAYS_FALSE = MethodHandles.dropArguments(
+            MethodHandles.constant(boolean.class, false), 0, Object.class);
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            IS_NON_NULL = lookup.findStatic(Objects.class, "nonNull",
+                    MethodType.methodType(boolean.class, Object.class));
+            IS_INSTANCE = lookup.findVirtual(Class.class, "isInstance",
+                    MethodType.methodType(boolean.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /** Folded sites whose fact no longer held when they were linked. */
+    static final LongAdder invalidated = new LongAdder();
+
+    /**
+     * Bootstrap method for folded sites, which are
+     * <tt>invokedynamic instanceOf (Ljava/lang/Object;)Z</tt> with the
+     * internal name of the operand's static type, the tested class and
+     * the folded result as static arguments.
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup caller, String name, MethodType type,
+                                     String operand, Class<?> target, int result) {
+        MethodHandle test;
+        if (holds(caller.lookupClass().getClassLoader(), operand, target, result)) {
+            test = result == NON_NULL ? IS_NON_NULL : ALWAYS_FALSE;
+        } else {
+            invalidated.increment();
+            test = IS_INSTANCE.bindTo(target);
+        }
+        return new ConstantCallSite(test.asType(type));
+    }
+
+    /** Checks a folded result against the classes loaded now. */
+    static boolean holds(ClassLoader loader, String operand, Class<?> target, int result) {
+        Class<?> type;
+        try {
+            type = Class.forName(operand.replace('/', '.'), false, loader);
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+        if (type.isInterface()) {
+            // The verifier does not check that values of interface type implement it
+            return false;
+        }
+        if (result == NON_NULL) {
+            return target.isAssignableFrom(type);
+        }
+        if (target.isAssignableFrom(type)) {
+            return false;
+        }
+        return target.isInterface() ? Modifier.isFinal(type.getModifiers()) : !type.isAssignableFrom(target);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.patch;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * An inline cache for one patched <tt>instanceof</tt> site, remembering
+ * the result for the last few receiver classes seen there.
+ *
+ * <p>Each site has its own cache in a synthetic <tt>static final</tt>
+ * field of the patched class, so a hit is a field load, a class compare
+ * and a return. Entries are immutable and published through plain
+ * fields: a thread may see an older entry or none, but by the final
+ * field guarantee never a partly built one. An entry's result cannot
+ * go stale, because the supertypes of a class never change, so a hit
+ * is always right. Lost updates only cost an extra miss. Receivers are
+ * held weakly, so that a cache never keeps a class loader alive; an
+ * entry whose class has been unloaded is reused as if empty.</p>
+ *
+ * <p>Once a site has seen more receiver classes than the cache holds,
+ * it is megamorphic and goes straight to the generic check in the
+ * {@link TypeRegistry}.</p>
+ *
+ * @author Rohan Padhye
+ */
+public final class InlineCache {
+
+    private static final class Entry extends WeakReference<Class<?>> {
+        final boolean result;
+
+        Entry(Class<?> receiver, boolean result) {
+            super(receiver);
+            this.result = result;
+        }
+    }
+
+    private Entry first;
+    private Entry second;
+    private boolean megamorphic;
+
+    /** Creates an empty cache; called from the static initializer of patched classes. */
+    public static InlineCache create() {
+        return new InlineCache();
+    }
+
+    /**
+     * Replaces <tt>object instanceof target</tt> at a site with the given
+     * cache. The cache is null if the site runs before the static
+     * initializer of its class, which can happen when a superclass
+     * initializer calls into the subclass.
+     */
+    public static boolean instanceOf(Object object, InlineCache cache, Class<?> target) {
+        if (object == null) {
+            return false;
+        }
+        Class<?> receiver = object.getClass();
+        if (cache == null) {
+            return TypeRegistry.instanceOf(object, target);
+        }
+
+        Entry e = cache.first;
+        if (e == null || e.get() != receiver) {
+            e = cache.second;
+        }
+        if (e != null && e.get() == receiver) {
+            if (TypeRegistry.stats) {
+                TypeRegistry.cacheHits.increment();
+            }
+            return e.result;
+        }
+        return cache.miss(receiver, target);
+    }
+
+    private boolean miss(Class<?> receiver, Class<?> target) {
+        boolean result = TypeRegistry.check(receiver, TypeRegistry.info(target));
+        if (!megamorphic) {
+            Entry e = new Entry(receiver, result);
+            if (first == null || first.get() == null) {
+                first = e;
+            } else if (second == null || second.get() == null) {
+                second = e;
+            } else {
+                megamorphic = true;
+                first = null;
+                second = null;
+            }
+        }
+        return result;
+    }
+}
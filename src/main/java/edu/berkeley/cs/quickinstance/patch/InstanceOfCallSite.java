@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.patch;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.ref.WeakReference;
+
+/**
+ * A self-specializing call site for a patched <tt>instanceof</tt>,
+ * linked by an <tt>invokedynamic</tt> instruction.
+ *
+ * <p>A site starts out unlinked: a null receiver is answered by a null
+ * check in front of the chain, and every other call goes to
+ * {@link #miss}, which decides the test with the {@link TypeRegistry}
+ * and adds a guard to the chain. The guard checks for exactly the
+ * receiver's class and returns the result as a constant, so once a
+ * site has settled the JIT can inline the whole test down to a class
+ * compare. After {@value #MAX_RECEIVERS} receiver classes, the site is
+ * megamorphic and is relinked to the generic registry check. Guards
+ * hold their class weakly, so that a site never keeps a class loader
+ * alive.</p>
+ *
+ * <p>Every target is correct for every receiver, because a class's
+ * supertypes never change, so a thread that still runs an older target
+ * gets a right answer too. Calls answered by a guard never reach the
+ * registry, so they are not counted by <tt>quickinstance.patch.stats</tt>.</p>
+ *
+ * @author Rohan Padhye
+ */
+public final class InstanceOfCallSite extends MutableCallSite {
+
+    private static final int MAX_RECEIVERS = 2;
+
+    private static final MethodType TYPE = MethodType.methodType(boolean.class, Object.class);
+    private static final MethodHandle IS_NULL;
+    private static final MethodHandle IS_EXACT;
+    private static final MethodHandle FALSE = constant(false);
+    private static final MethodHandle MISS;
+    private static final MethodHandle GENERIC;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            IS_NULL = lookup.findStatic(InstanceOfCallSite.class, "isNull", TYPE);
+            IS_EXACT = lookup.findStatic(InstanceOfCallSite.class, "isExact",
+                    MethodType.methodType(boolean.class, WeakReference.class, Object.class));
+            MISS = lookup.findVirtual(InstanceOfCallSite.class, "miss", TYPE);
+            GENERIC = lookup.findStatic(TypeRegistry.class, "instanceOf",
+                    MethodType.methodType(boolean.class, Object.class, Class.class));
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private final Class<?> target;
+    /** The guards added so far, ending with the miss handler; everything but the null check. */
+    private MethodHandle chain;
+    private int receivers;
+
+    private InstanceOfCallSite(Class<?> target) {
+        super(TYPE);
+        this.target = target;
+        link(MISS.bindTo(this));
+    }
+
+    private void link(MethodHandle chain) {
+        this.chain = chain;
+        setTarget(MethodHandles.guardWithTest(IS_NULL, FALSE, chain));
+    }
+
+    private static MethodHandle constant(boolean result) {
+        return MethodHandles.dropArguments(MethodHandles.constant(boolean.class, result), 0, Object.class);
+    }
+
+    /**
+     * Bootstrap method for patched sites, which are
+     * <tt>invokedynamic instanceOf (Ljava/lang/Object;)Z</tt> with the
+     * tested class as the only static argument.
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup caller, String name, MethodType type, Class<?> target) {
+        return new InstanceOfCallSite(target);
+    }
+
+    private static boolean isNull(Object object) {
+        return object == null;
+    }
+
+    private static boolean isExact(WeakReference<Class<?>> type, Object object) {
+        return object.getClass() == type.get();
+    }
+
+    private synchronized boolean miss(Object object) {
+        Class<?> receiver = object.getClass();
+        boolean result = TypeRegistry.check(receiver, TypeRegistry.info(target));
+        if (receivers < MAX_RECEIVERS) {
+            receivers++;
+            MethodHandle test = MethodHandles.insertArguments(IS_EXACT, 0, new WeakReference<Class<?>>(receiver));
+            link(MethodHandles.guardWithTest(test, constant(result), chain));
+        } else if (receivers == MAX_RECEIVERS) {
+            receivers++;
+            link(MethodHandles.insertArguments(GENERIC, 1, target));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.patch;
+
+import java.io.PrintStream;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.berkeley.cs.quickinstance.BetterBasicInterpreter;
+import edu.berkeley.cs.quickinstance.ClassHierarchy;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Folds <tt>instanceof</tt> tests whose result follows from the static
+ * type of the operand. If the operand's type is a subtype of the
+ * target, the test is only a null check; if no object can have both
+ * types, the test is always false.
+ *
+ * <p>Static types come from the data-flow frames of
+ * {@link BetterBasicInterpreter}, with types merged through the
+ * {@link ClassHierarchy} so that no classes are loaded. Operands of
+ * interface type are never folded, because the verifier does not check
+ * that values of interface type implement the interface.</p>
+ *
+ * <p>Only two folds hold regardless of other classes: the constant
+ * <tt>null</tt> is never an instance, and everything else is an
+ * instance of <tt>Object</tt>. The others rely on the hierarchy at
+ * instrumentation time, which may have changed by the time a cached
+ * class is loaded, so they are emitted as <tt>invokedynamic</tt> sites
+ * that {@link FoldedInstanceOf} checks when linking. Class files that
+ * cannot use <tt>invokedynamic</tt> keep those tests.</p>
+ *
+ * @author Rohan Padhye
+ */
+final class InstanceOfFolder {
+    private InstanceOfFolder() {}
+
+    /**
+     * Folded results; <tt>SUBTYPE</tt> and <tt>UNRELATED</tt> are the
+     * null check and false that rely on the class hierarchy.
+     */
+    private enum Result { UNKNOWN, NON_NULL, FALSE, SUBTYPE, UNRELATED }
+
+    private static final Handle BOOTSTRAP = new Handle(H_INVOKESTATIC,
+            "edu/berkeley/cs/quickinstance/patch/FoldedInstanceOf", "bootstrap",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;" +
+                    "Ljava/lang/String;Ljava/lang/Class;I)Ljava/lang/invoke/CallSite;", false);
+
+    private static final LongAdder sites = new LongAdder();
+    private static final LongAdder nullChecks = new LongAdder();
+    private static final LongAdder falses = new LongAdder();
+
+    static {
+        if (TypeRegistry.stats) {
+            PrintStream out = System.err;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                long total = sites.sum();
+                long nonNull = nullChecks.sum();
+                long never = falses.sum();
+                out.printf("folded instanceof sites: total=%d, to null check=%d (%.2f), to false=%d (%.2f), " +
+                                "invalidated at link=%d\n",
+                        total,
+                        nonNull, ratio(nonNull, total),
+                        never, ratio(never, total),
+                        FoldedInstanceOf.invalidated.sum());
+            }));
+        }
+    }
+
+    private static float ratio(long count, long total) {
+        return total == 0 ? 0 : ((float) count) / ((float) total);
+    }
+
+    /**
+     * Folds the decidable <tt>instanceof</tt> tests in a method, leaving
+     * the rest in place. Folds that rely on the class hierarchy are only
+     * made if <tt>indy</tt> is set. Returns the number of tests folded.
+     */
+    static int fold(String owner, MethodNode methodNode, ClassHierarchy hierarchy, boolean indy) {
+        int count = 0;
+        for (AbstractInsnNode insn : methodNode.instructions.toArray()) {
+            if (insn.getOpcode() == INSTANCEOF) {
+                count++;
+            }
+        }
+        sites.add(count);
+        if (count == 0) {
+            return 0;
+        }
+
+        Frame<BasicValue>[] frames;
+        try {
+            Analyzer<BasicValue> a = new Analyzer<>(new BetterBasicInterpreter() {
+                @Override
+                protected String getCommonSuperClass(String type1, String type2) {
+                    return hierarchy.commonSuperClass(type1, type2);
+                }
+            });
+            frames = a.analyze(owner, methodNode);
+        } catch (AnalyzerException | RuntimeException e) {
+            // Without static types, nothing can be folded
+            return 0;
+        }
+
+        // Decide all tests before changing any, since frames are indexed by instruction
+        InsnList instructions = methodNode.instructions;
+        AbstractInsnNode[] insns = instructions.toArray();
+        Result[] results = new Result[insns.length];
+        for (int i = 0; i < insns.length; i++) {
+            if (insns[i].getOpcode() == INSTANCEOF && frames[i] != null) {
+                Type operand = frames[i].getStack(frames[i].getStackSize() - 1).getType();
+                results[i] = decide(hierarchy, operand, ((TypeInsnNode) insns[i]).desc);
+            }
+        }
+
+        int folded = 0;
+        for (int i = 0; i < insns.length; i++) {
+            if ((results[i] == Result.SUBTYPE || results[i] == Result.UNRELATED) && indy) {
+                boolean subtype = results[i] == Result.SUBTYPE;
+                Type operand = frames[i].getStack(frames[i].getStackSize() - 1).getType();
+                instructions.set(insns[i], new InvokeDynamicInsnNode("instanceOf", "(Ljava/lang/Object;)Z",
+                        BOOTSTRAP, operand.getInternalName(), Type.getObjectType(((TypeInsnNode) insns[i]).desc),
+                        subtype ? FoldedInstanceOf.NON_NULL : FoldedInstanceOf.FALSE));
+                (subtype ? nullChecks : falses).increment();
+                folded++;
+            } else if (results[i] == Result.NON_NULL) {
+                LabelNode nonNull = new LabelNode();
+                LabelNode done = new LabelNode();
+                InsnList check = new InsnList();
+                check.add(new JumpInsnNode(IFNONNULL, nonNull));
+                check.add(new InsnNode(ICONST_0));
+                check.add(new JumpInsnNode(GOTO, done));
+                check.add(nonNull);
+                check.add(new InsnNode(ICONST_1));
+                check.add(done);
+                instructions.insert(insns[i], check);
+                instructions.remove(insns[i]);
+                nullChecks.increment();
+                folded++;
+            } else if (results[i] == Result.FALSE) {
+                instructions.insert(insns[i], new InsnNode(ICONST_0));
+                instructions.set(insns[i], new InsnNode(POP));
+                falses.increment();
+                folded++;
+            }
+        }
+        return folded;
+    }
+
+    /** Decides <tt>operand instanceof target</tt> from the static type of the operand, if possible. */
+    private static Result decide(ClassHierarchy hierarchy, Type operand, String target) {
+        if (operand.getSort() != Type.OBJECT && operand.getSort() != Type.ARRAY) {
+            return Result.UNKNOWN;
+        }
+        if (operand.getSort() == Type.OBJECT && operand.getInternalName().equals("null")) {
+            // The constant null is not an instance of anything
+            return Result.FALSE;
+        }
+        if (target.equals("java/lang/Object")) {
+            return Result.NON_NULL;
+        }
+        if (operand.getSort() == Type.ARRAY || target.startsWith("[")) {
+            return Result.UNKNOWN;
+        }
+
+        String type = operand.getInternalName();
+        ClassHierarchy.Info info = hierarchy.info(type);
+        Set<String> supertypes = hierarchy.supertypes(type);
+        if (info == null || info.isInterface() || supertypes == null) {
+            return Result.UNKNOWN;
+        }
+        if (supertypes.contains(target)) {
+            return Result.SUBTYPE;
+        }
+
+        // The operand's type is not a subtype of the target; the target may still be a subtype of it
+        ClassHierarchy.Info targetInfo = hierarchy.info(target);
+        if (targetInfo == null) {
+            return Result.UNKNOWN;
+        }
+        if (!targetInfo.isInterface()) {
+            // Classes are only related through single inheritance
+            Set<String> targetSupertypes = hierarchy.supertypes(target);
+            return targetSupertypes != null && !targetSupertypes.contains(type) ? Result.UNRELATED : Result.UNKNOWN;
+        }
+        // No subclass of a final class can add the interface
+        return info.isFinal() ? Result.UNRELATED : Result.UNKNOWN;
+    }
+}
@@ -28,39 +28,101 @@
  */
 package edu.berkeley.cs.quickinstance.patch;
 
-import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
+import java.util.Collections;
 import java.util.ListIterator;
+import java.util.Set;
 
-import edu.berkeley.cs.quickinstance.BetterBasicInterpreter;
+import edu.berkeley.cs.quickinstance.ClassHierarchy;
+import edu.berkeley.cs.quickinstance.ConfiguredTransformer;
 import edu.berkeley.cs.quickinstance.SafeClassWriter;
+import edu.berkeley.cs.quickinstance.StaticInitializer;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
 import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
 import org.objectweb.asm.tree.LdcInsnNode;
 import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
 import org.objectweb.asm.tree.TypeInsnNode;
-import org.objectweb.asm.tree.analysis.Analyzer;
 import org.objectweb.asm.tree.analysis.AnalyzerException;
-import org.objectweb.asm.tree.analysis.BasicValue;
-import org.objectweb.asm.tree.analysis.Frame;
 
 import static org.objectweb.asm.Opcodes.*;
 
 /**
+ * Replaces <tt>instanceof</tt> with checks based on type IDs from the
+ * {@link TypeRegistry}. Tests against a class use the class's display,
+ * and tests against an interface use the interface bitset of the
+ * object's class; the class hierarchy is read
+ * at instrumentation time to find out which targets are which.
+ *
+ * <p>The system property <tt>quickinstance.patch.mode</tt> selects how
+ * <tt>instanceof</tt> is patched: <tt>ids</tt> (the default) uses type
+ * IDs, <tt>cache</tt> gives each site an {@link InlineCache} in front
+ * of the ID-based checks, <tt>indy</tt> links each site to a
+ * self-specializing {@link InstanceOfCallSite} (for class files that
+ * support <tt>invokedynamic</tt>; older ones use IDs), and
+ * <tt>native</tt> leaves the instruction alone, so that all can be
+ * measured on the same instrumented code. Classes from the bootstrap
+ * loader, and class files older than Java 5, which cannot load class
+ * constants, are left alone.</p>
+ *
+ * <p>Except in <tt>native</tt> mode, tests that can be decided from the
+ * static type of the operand are first folded by the
+ * {@link InstanceOfFolder}, unless <tt>quickinstance.patch.fold</tt> is
+ * set to <tt>false</tt>. Tests that guard a cast of the same value are
+ * found by the {@link CastFuser} and left native, so that the JIT can
+ * drop the cast, unless <tt>quickinstance.patch.fuse</tt> is set to
+ * <tt>false</tt>.</p>
+ *
  * @author Rohan Padhye
  */
 @SuppressWarnings("unused") // Instatiated dynamically
-public class PatchingTransformer implements ClassFileTransformer {
+public class PatchingTransformer implements ConfiguredTransformer {
+
+    static final String REGISTRY = "edu/berkeley/cs/quickinstance/patch/TypeRegistry";
+    static final String INLINE_CACHE = "edu/berkeley/cs/quickinstance/patch/InlineCache";
+    static final String INLINE_CACHE_FIELD = "__qiCache%d__";
+    static final Handle INSTANCEOF_BOOTSTRAP = new Handle(H_INVOKESTATIC,
+            "edu/berkeley/cs/quickinstance/patch/InstanceOfCallSite", "bootstrap",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/Class;)Ljava/lang/invoke/CallSite;",
+            false);
+
+    private final String mode;
+    private final boolean fold;
+    private final boolean fuse;
+
+    public PatchingTransformer() {
+        this(System.getProperty("quickinstance.patch.mode", "ids"),
+                Boolean.parseBoolean(System.getProperty("quickinstance.patch.fold", "true")),
+                Boolean.parseBoolean(System.getProperty("quickinstance.patch.fuse", "true")));
+    }
+
+    PatchingTransformer(String mode, boolean fold, boolean fuse) {
+        this.mode = mode;
+        this.fold = fold;
+        this.fuse = fuse;
+    }
+
+    @Override
+    public String configuration() {
+        return "mode=" + mode + ",fold=" + fold + ",fuse=" + fuse;
+    }
 
     @Override
     public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
                             ProtectionDomain d, byte[] cbuf) throws IllegalClassFormatException {
+        // The bootstrap loader cannot see the registry
+        if (loader == null) {
+            return null;
+        }
 
         try {
             // First, read original class file into a class node using a reader
@@ -69,7 +131,7 @@ public class PatchingTransformer implements ClassFileTransformer {
             cr.accept(cn, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
 
             // Second, perform transformations on the class node
-            this.runOn(cn);
+            this.runOn(cn, new ClassHierarchy(loader));
 
             // Third, write the class node to a new class file using a writer
             ClassWriter cw = new SafeClassWriter(loader,
@@ -85,46 +147,74 @@ public class PatchingTransformer implements ClassFileTransformer {
     }
 
     public void runOn(ClassNode classNode) throws AnalyzerException {
-        // Add unique type ID TODO: Generate fresh type ID
-        classNode.fields.add(new FieldNode(ACC_PUBLIC | ACC_STATIC | ACC_FINAL,
-                "__typeID__", "J", null, Long.valueOf(1)));
+        runOn(classNode, new ClassHierarchy(null));
+    }
+
+    public void runOn(ClassNode classNode, ClassHierarchy hierarchy) throws AnalyzerException {
+        // Type IDs are assigned lazily by the registry, so only the tests need patching;
+        // class constants, which the patched tests load, need a Java 5 class file
+        if (mode.equals("native") || (classNode.version & 0xFFFF) < V1_5) {
+            return;
+        }
 
         // Go through all methods with code
+        boolean cached = mode.equals("cache");
+        boolean supportsIndy = (classNode.version & 0xFFFF) >= V1_7;
+        boolean indy = mode.equals("indy") && supportsIndy;
+        int caches = 0;
         for (MethodNode methodNode : classNode.methods) {
-            if (methodNode.instructions.size() > 0) {
-                // First, analyze all frames so that we know types, etc
-                Analyzer<BasicValue> a = new Analyzer<>(new BetterBasicInterpreter());
-                a.analyze(classNode.name, methodNode);
-                Frame<BasicValue>[] frames = a.getFrames();
-
-                // Then, look for instanceof instructions
-                ListIterator<AbstractInsnNode> it = methodNode.instructions.iterator();
-                int idx = 0;
-                while (!it.hasNext()) {
-                    AbstractInsnNode insn = it.next();
-                    if (insn.getOpcode() == INSTANCEOF) { // ohh, the irony
-                        TypeInsnNode typeInsn = ((TypeInsnNode) insn);
-                        String rhsType = typeInsn.desc;
-                        String lhsType = getTopOfStack(frames[idx]);
-
-                        // Remove the instanceof operation and replace with static method call
-                        it.remove();
-                        it.add(new LdcInsnNode(Type.getObjectType(lhsType)));
-                        it.add(new LdcInsnNode(Type.getObjectType(rhsType)));
-                        it.add(new MethodInsnNode(INVOKESTATIC, "edu/berkeley/cs/quickinstance/profile/Profiler",
-                                "instanceOf", "(Ljava/lang/Object;Ljava/lang/Class;Ljava/lang/Class;)Z", false));
+            if (fold && methodNode.instructions.size() > 0) {
+                InstanceOfFolder.fold(classNode.name, methodNode, hierarchy, supportsIndy);
+            }
+            Set<AbstractInsnNode> guarding = fuse && methodNode.instructions.size() > 0 ?
+                    CastFuser.guardingTests(classNode.name, methodNode, hierarchy) : Collections.emptySet();
+            ListIterator<AbstractInsnNode> it = methodNode.instructions.iterator();
+            while (it.hasNext()) {
+                AbstractInsnNode insn = it.next();
+                if (insn.getOpcode() == INSTANCEOF && !guarding.contains(insn)) { // ohh, the irony
+                    TypeInsnNode typeInsn = ((TypeInsnNode) insn);
+
+                    // Remove the instanceof operation and replace with static method call
+                    it.remove();
+                    if (cached) {
+                        it.add(new FieldInsnNode(GETSTATIC, classNode.name, String.format(INLINE_CACHE_FIELD, caches++),
+                                "L" + INLINE_CACHE + ";"));
+                        it.add(new LdcInsnNode(Type.getObjectType(typeInsn.desc)));
+                        it.add(new MethodInsnNode(INVOKESTATIC, INLINE_CACHE, "instanceOf",
+                                "(Ljava/lang/Object;L" + INLINE_CACHE + ";Ljava/lang/Class;)Z", false));
+                    } else if (indy) {
+                        it.add(new InvokeDynamicInsnNode("instanceOf", "(Ljava/lang/Object;)Z",
+                                INSTANCEOF_BOOTSTRAP, Type.getObjectType(typeInsn.desc)));
+                    } else {
+                        it.add(new LdcInsnNode(Type.getObjectType(typeInsn.desc)));
+                        it.add(new MethodInsnNode(INVOKESTATIC, REGISTRY,
+                                checkFor(hierarchy, typeInsn.desc),
+                                "(Ljava/lang/Object;Ljava/lang/Class;)Z", false));
                     }
-                    idx++;
                 }
-
             }
         }
+
+        // One cache per site, each in its own field so that the JIT can treat it as a constant
+        boolean isInterface = (classNode.access & ACC_INTERFACE) != 0;
+        InsnList init = new InsnList();
+        for (int i = 0; i < caches; i++) {
+            String field = String.format(INLINE_CACHE_FIELD, i);
+            classNode.fields.add(new FieldNode((isInterface ? ACC_PUBLIC : ACC_PRIVATE) | ACC_STATIC | ACC_FINAL | ACC_SYNTHETIC,
+                    field, "L" + INLINE_CACHE + ";", null, null));
+            init.add(new MethodInsnNode(INVOKESTATIC, INLINE_CACHE, "create", "()L" + INLINE_CACHE + ";", false));
+            init.add(new FieldInsnNode(PUTSTATIC, classNode.name, field, "L" + INLINE_CACHE + ";"));
+        }
+        StaticInitializer.prepend(classNode, init);
     }
 
-    private String getTopOfStack(Frame<BasicValue> frame) {
-        int topIdx = frame.getStackSize() - 1;
-        BasicValue value = frame.getStack(topIdx);
-        Type type = value.getType();
-        return type.getInternalName();
+    /** Returns the name of the registry check for a target type. */
+    static String checkFor(ClassHierarchy hierarchy, String type) {
+        ClassHierarchy.Info info = hierarchy.info(type);
+        if (info == null) {
+            // Arrays, and types that cannot be resolved
+            return "instanceOf";
+        }
+        return info.isInterface() ? "instanceOfInterface" : "instanceOfClass";
     }
 }
@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.patch;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Global registry of type IDs, and the runtime checks that replace
+ * <tt>instanceof</tt> in patched classes.
+ *
+ * <p>Every class gets a fresh ID the first time a type test meets an
+ * instance (or target) of the class. IDs are
+ * never reused. Per-class data is kept in a {@link ClassValue}, which
+ * the JVM looks up without locking.</p>
+ *
+ * <p>Each class also gets a Cohen display: its depth in the class
+ * hierarchy (<tt>Object</tt> is at depth 0) and the IDs of its
+ * superclasses indexed by depth, ending with its own ID. Then
+ * <tt>x instanceof C</tt>, for a class <tt>C</tt>, holds exactly if
+ * the display of <tt>x</tt>'s class is deeper than <tt>C</tt> and has
+ * <tt>C</tt>'s ID at <tt>C</tt>'s depth. A display is built from the
+ * display of the superclass, which the JVM always loads first, so
+ * displays are correct whatever order classes are loaded in.</p>
+ *
+ * <p>Interfaces also get a dense interface number, counting only
+ * interfaces, and every type gets a bitset of the numbers of all the
+ * interfaces it implements, directly or not. Then <tt>x instanceof
+ * I</tt>, for an interface <tt>I</tt>, is a single bit test. As with
+ * displays, the bitset is the union of the bitsets of the direct
+ * supertypes, which are always loaded first.</p>
+ *
+ * <p>If the system property <tt>quickinstance.patch.stats</tt> is set,
+ * the number of checks decided by type IDs and the number that fell
+ * back to the JVM are printed at exit.</p>
+ *
+ * @author Rohan Padhye
+ */
+public final class TypeRegistry {
+    private TypeRegistry() {}
+
+    /** ID 0 is never assigned. */
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+    private static final AtomicInteger nextInterfaceBit = new AtomicInteger(0);
+
+    private static final int[] NO_DISPLAY = new int[0];
+    private static final long[] NO_INTERFACES = new long[0];
+
+    /** What the registry knows about a class. */
+    static final class TypeInfo {
+        final Class<?> type;
+        final int id;
+        /** True for classes, which can be tested with displays; false for interfaces, arrays and primitives. */
+        final boolean isClass;
+        /** Depth below <tt>Object</tt>, or -1 for interfaces and primitives. */
+        final int depth;
+        /** IDs of the superclasses by depth, ending with this class. */
+        final int[] display;
+        /** Interface number of an interface, or -1 for other types. */
+        final int interfaceBit;
+        /** Bitset of the interface numbers of all interfaces this type implements. */
+        final long[] interfaces;
+
+        TypeInfo(Class<?> type, int id, int depth, int[] display, int interfaceBit, long[] interfaces) {
+            this.type = type;
+            this.id = id;
+            this.isClass = !type.isInterface() && !type.isArray() && !type.isPrimitive();
+            this.depth = depth;
+            this.display = display;
+            this.interfaceBit = interfaceBit;
+            this.interfaces = interfaces;
+        }
+    }
+
+    private static final ClassValue<TypeInfo> types = new ClassValue<TypeInfo>() {
+        @Override
+        protected TypeInfo computeValue(Class<?> type) {
+            int id = nextId.getAndIncrement();
+            int interfaceBit = type.isInterface() ? nextInterfaceBit.getAndIncrement() : -1;
+
+            // Interfaces and primitives have no superclass; arrays extend Object
+            Class<?> superclass = type.getSuperclass();
+            int depth;
+            int[] display;
+            long[] interfaces = NO_INTERFACES;
+            if (superclass == null) {
+                depth = type == Object.class ? 0 : -1;
+                display = type == Object.class ? new int[] { id } : NO_DISPLAY;
+            } else {
+                TypeInfo superInfo = get(superclass);
+                depth = superInfo.display.length;
+                display = Arrays.copyOf(superInfo.display, depth + 1);
+                display[depth] = id;
+                interfaces = superInfo.interfaces;
+            }
+
+            if (interfaceBit >= 0) {
+                interfaces = setBit(interfaces, interfaceBit);
+            }
+            for (Class<?> itf : type.getInterfaces()) {
+                interfaces = union(interfaces, get(itf).interfaces);
+            }
+            return new TypeInfo(type, id, depth, display, interfaceBit, interfaces);
+        }
+    };
+
+    private static long[] setBit(long[] bits, int bit) {
+        long[] result = Arrays.copyOf(bits, Math.max(bits.length, (bit >>> 6) + 1));
+        result[bit >>> 6] |= 1L << bit;
+        return result;
+    }
+
+    private static long[] union(long[] a, long[] b) {
+        if (b.length > a.length) {
+            long[] t = a;
+            a = b;
+            b = t;
+        }
+        long[] result = a.clone();
+        for (int i = 0; i < b.length; i++) {
+            result[i] |= b[i];
+        }
+        return result;
+    }
+
+    static final boolean stats = Boolean.getBoolean("quickinstance.patch.stats");
+    private static final LongAdder fastChecks = new LongAdder();
+    private static final LongAdder fallbacks = new LongAdder();
+    static final LongAdder cacheHits = new LongAdder();
+
+    static {
+        if (stats) {
+            PrintStream out = System.err;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                long hits = cacheHits.sum();
+                long fast = fastChecks.sum();
+                long slow = fallbacks.sum();
+                long total = hits + fast + slow;
+                out.printf("patched instanceof: total=%d, cache hit=%d (%.2f), by type ID=%d (%.2f), fallback=%d (%.2f), types=%d\n",
+                        total,
+                        hits, ratio(hits, total),
+                        fast, ratio(fast, total),
+                        slow, ratio(slow, total),
+                        nextId.get() - 1);
+            }));
+        }
+    }
+
+    private static float ratio(long count, long total) {
+        return total == 0 ? 0 : ((float) count) / ((float) total);
+    }
+
+    static TypeInfo info(Class<?> type) {
+        return types.get(type);
+    }
+
+    /**
+     * Replaces <tt>object instanceof target</tt>, choosing the check by
+     * what the target is at run time: the display for a class, the
+     * interface bitset for an interface, and the JVM for anything else
+     * (that is, arrays).
+     */
+    public static boolean instanceOf(Object object, Class<?> target) {
+        if (object == null) {
+            return false;
+        }
+        return check(object.getClass(), types.get(target));
+    }
+
+    /** Decides whether instances of <tt>receiver</tt> are instances of <tt>t</tt>'s type. */
+    static boolean check(Class<?> receiver, TypeInfo t) {
+        if (t.interfaceBit >= 0) {
+            return implementsInterface(types.get(receiver), t.interfaceBit);
+        } else if (t.isClass) {
+            return extendsClass(types.get(receiver), t);
+        } else {
+            if (stats) {
+                fallbacks.increment();
+            }
+            return t.type.isAssignableFrom(receiver);
+        }
+    }
+
+    private static boolean extendsClass(TypeInfo r, TypeInfo t) {
+        if (stats) {
+            fastChecks.increment();
+        }
+        int[] display = r.display;
+        return t.depth < display.length && display[t.depth] == t.id;
+    }
+
+    private static boolean implementsInterface(TypeInfo r, int bit) {
+        if (stats) {
+            fastChecks.increment();
+        }
+        long[] interfaces = r.interfaces;
+        int word = bit >>> 6;
+        return word < interfaces.length && (interfaces[word] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Replaces <tt>object instanceof target</tt> where the target was a
+     * class (not an interface or array) when the caller was patched.
+     * This is a bounds check and one compare on the display of the
+     * object's class.
+     */
+    public static boolean instanceOfClass(Object object, Class<?> target) {
+        if (object == null) {
+            return false;
+        }
+        TypeInfo t = types.get(target);
+        if (!t.isClass) {
+            // The target has become an interface since the caller was patched
+            return check(object.getClass(), t);
+        }
+        return extendsClass(types.get(object.getClass()), t);
+    }
+
+    /**
+     * Replaces <tt>object instanceof target</tt> where the target was an
+     * interface when the caller was patched. This is a single bit test
+     * on the interface bitset of the object's class.
+     */
+    public static boolean instanceOfInterface(Object object, Class<?> target) {
+        if (object == null) {
+            return false;
+        }
+        TypeInfo t = types.get(target);
+        if (t.interfaceBit < 0) {
+            // The target has become a class since the caller was patched
+            return check(object.getClass(), t);
+        }
+        return implementsInterface(types.get(object.getClass()), t.interfaceBit);
+    }
+}
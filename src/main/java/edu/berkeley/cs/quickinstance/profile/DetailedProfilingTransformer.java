@@ -31,24 +31,39 @@ package edu.berkeley.cs.quickinstance.profile;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
 
 import edu.berkeley.cs.quickinstance.BetterBasicInterpreter;
+import edu.berkeley.cs.quickinstance.ClassHierarchy;
 import edu.berkeley.cs.quickinstance.SafeClassWriter;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.LdcInsnNode;
 import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
 import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
 import org.objectweb.asm.tree.analysis.Analyzer;
 import org.objectweb.asm.tree.analysis.AnalyzerException;
 import org.objectweb.asm.tree.analysis.BasicValue;
 import org.objectweb.asm.tree.analysis.Frame;
 
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.CHECKCAST;
+import static org.objectweb.asm.Opcodes.DUP;
+import static org.objectweb.asm.Opcodes.IFEQ;
 import static org.objectweb.asm.Opcodes.INSTANCEOF;
 import static org.objectweb.asm.Opcodes.INVOKESTATIC;
 
@@ -69,7 +84,7 @@ public class DetailedProfilingTransformer implements ClassFileTransformer {
             cr.accept(cn, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
 
             // Second, perform transformations on the class node
-            this.runOn(cn);
+            this.runOn(cn, new ClassHierarchy(loader));
 
             // Third, write the class node to a new class file using a writer
             ClassWriter cw = new SafeClassWriter(loader,
@@ -85,6 +100,12 @@ public class DetailedProfilingTransformer implements ClassFileTransformer {
     }
 
     public void runOn(ClassNode classNode) throws AnalyzerException {
+        runOn(classNode, new ClassHierarchy(null));
+    }
+
+    public void runOn(ClassNode classNode, ClassHierarchy hierarchy) throws AnalyzerException {
+        SiteTable sites = new SiteTable(classNode.name);
+
         // Go through all methods with code
         for (MethodNode methodNode : classNode.methods) {
             if (methodNode.instructions.size() > 0) {
@@ -93,34 +114,157 @@ public class DetailedProfilingTransformer implements ClassFileTransformer {
                 a.analyze(classNode.name, methodNode);
                 Frame<BasicValue>[] frames = a.getFrames();
 
-                // Then, look for instanceof instructions
+                // Handlers for finally blocks and catch-all do not test a type
+                Set<LabelNode> handlers = new HashSet<>();
+                for (TryCatchBlockNode tryCatch : methodNode.tryCatchBlocks) {
+                    if (tryCatch.type != null) {
+                        handlers.add(tryCatch.handler);
+                    }
+                }
+
+                // Find chains of instanceof tests before the tests are rewritten
+                Map<AbstractInsnNode, AbstractInsnNode> links = findChainLinks(methodNode);
+                Map<AbstractInsnNode, Integer> instanceOfSites = new HashMap<>();
+
+                // Then, look for type tests
                 ListIterator<AbstractInsnNode> it = methodNode.instructions.iterator();
                 int idx = 0;
+                int insnIndex = 0;
                 while (it.hasNext()) {
                     AbstractInsnNode insn = it.next();
                     if (insn.getOpcode() == INSTANCEOF) { // ohh, the irony
                         TypeInsnNode typeInsn = ((TypeInsnNode) insn);
                         String rhsType = typeInsn.desc;
-//                        System.out.printf("instanceof in method %s#%s: (%s, %s)\n",
-//                                classNode.name, methodNode.name,
-//                                getTopOfStack(frames[idx]), typeInsn.desc);
                         String lhsType = getTopOfStack(frames[idx]);
 
                         // Remove the instanceof operation and replace with static method call
                         it.remove();
-                        it.add(new LdcInsnNode(Type.getObjectType(lhsType)));
                         it.add(new LdcInsnNode(Type.getObjectType(rhsType)));
-                        it.add(new MethodInsnNode(INVOKESTATIC, "edu/berkeley/cs/quickinstance/profile/Profiler",
-                                "instanceOf", "(Ljava/lang/Object;Ljava/lang/Class;Ljava/lang/Class;)Z", false));
+                        int flags = ProfilingMethodVisitor.targetFlags(hierarchy, rhsType) | operandFlags(lhsType);
+                        int site = sites.add(SiteKind.INSTANCEOF, flags, methodNode.name, methodNode.desc, insnIndex, -1);
+                        instanceOfSites.put(insn, site);
+                        addAll(it, sites.loadSiteId(site));
+                        it.add(new MethodInsnNode(INVOKESTATIC, ProfilingMethodVisitor.PROFILER,
+                                "instanceOf", "(Ljava/lang/Object;Ljava/lang/Class;I)Z", false));
+                    } else if (insn.getOpcode() == CHECKCAST) {
+                        // Profile a copy of the operand, and keep the cast itself so that failures still throw
+                        TypeInsnNode typeInsn = ((TypeInsnNode) insn);
+                        int flags = ProfilingMethodVisitor.targetFlags(hierarchy, typeInsn.desc)
+                                | operandFlags(getTopOfStack(frames[idx]));
+                        int site = sites.add(SiteKind.CHECKCAST, flags, methodNode.name, methodNode.desc, insnIndex, -1);
+                        InsnList hook = new InsnList();
+                        hook.add(new InsnNode(DUP));
+                        hook.add(new LdcInsnNode(Type.getObjectType(typeInsn.desc)));
+                        hook.add(sites.loadSiteId(site));
+                        hook.add(new MethodInsnNode(INVOKESTATIC, ProfilingMethodVisitor.PROFILER,
+                                "checkCast", "(Ljava/lang/Object;Ljava/lang/Class;I)V", false));
+                        methodNode.instructions.insertBefore(insn, hook);
+                    } else if (insn instanceof MethodInsnNode) {
+                        MethodInsnNode call = (MethodInsnNode) insn;
+                        SiteKind kind = ProfilingMethodVisitor.reflectiveTypeTest(call.getOpcode(),
+                                call.owner, call.name, call.desc);
+                        if (kind != null) {
+                            // The receiver and argument are already on the stack, so only the site ID is added
+                            int site = sites.add(kind, 0, methodNode.name, methodNode.desc, insnIndex, -1);
+                            it.remove();
+                            addAll(it, sites.loadSiteId(site));
+                            it.add(new MethodInsnNode(INVOKESTATIC, ProfilingMethodVisitor.PROFILER, call.name,
+                                    "(Ljava/lang/Class;" + call.desc.substring(1, call.desc.indexOf(')')) + "I)Z",
+                                    false));
+                        }
+                    } else if (insn instanceof LabelNode && handlers.remove(insn)) {
+                        int site = sites.add(SiteKind.CATCH, 0, methodNode.name, methodNode.desc, insnIndex, -1);
+                        addAll(it, sites.loadSiteId(site));
+                        it.add(new MethodInsnNode(INVOKESTATIC, ProfilingMethodVisitor.PROFILER,
+                                "caught", "(I)V", false));
+                    }
+                    if (insn.getOpcode() >= 0) {
+                        insnIndex++;
                     }
                     idx++;
                 }
 
+                // Chains start at tests that are not reached from another test in a chain
+                Set<AbstractInsnNode> heads = new HashSet<>(links.keySet());
+                heads.removeAll(links.values());
+                for (AbstractInsnNode head : heads) {
+                    int position = 0;
+                    Set<AbstractInsnNode> seen = new HashSet<>();
+                    for (AbstractInsnNode test = head; test != null && seen.add(test); test = links.get(test)) {
+                        sites.setChain(instanceOfSites.get(test), instanceOfSites.get(head), position++);
+                    }
+                }
+            }
+        }
+
+        sites.emit(classNode);
+    }
+
+    /**
+     * Finds <tt>instanceof</tt> tests that, when they fail, go straight
+     * to another <tt>instanceof</tt> test of the same local variable, as
+     * in <tt>if (x instanceof A) ... else if (x instanceof B) ...</tt>.
+     *
+     * @return a map from each such test to the test that follows it
+     */
+    private static Map<AbstractInsnNode, AbstractInsnNode> findChainLinks(MethodNode methodNode) {
+        Map<AbstractInsnNode, AbstractInsnNode> links = new HashMap<>();
+        for (AbstractInsnNode insn : methodNode.instructions.toArray()) {
+            if (insn.getOpcode() != INSTANCEOF) {
+                continue;
+            }
+            AbstractInsnNode load = previousReal(insn);
+            AbstractInsnNode branch = nextReal(insn);
+            if (load == null || load.getOpcode() != ALOAD || branch == null || branch.getOpcode() != IFEQ) {
+                continue;
+            }
+            AbstractInsnNode nextLoad = nextReal(((JumpInsnNode) branch).label);
+            AbstractInsnNode nextTest = nextLoad != null ? nextReal(nextLoad) : null;
+            if (nextLoad != null && nextLoad.getOpcode() == ALOAD
+                    && ((VarInsnNode) nextLoad).var == ((VarInsnNode) load).var
+                    && nextTest != null && nextTest.getOpcode() == INSTANCEOF) {
+                links.put(insn, nextTest);
             }
         }
+        return links;
+    }
+
+    private static AbstractInsnNode nextReal(AbstractInsnNode insn) {
+        do {
+            insn = insn.getNext();
+        } while (insn != null && insn.getOpcode() < 0);
+        return insn;
+    }
+
+    private static AbstractInsnNode previousReal(AbstractInsnNode insn) {
+        do {
+            insn = insn.getPrevious();
+        } while (insn != null && insn.getOpcode() < 0);
+        return insn;
     }
 
+    /** Moves all instructions of a list to the current position of an iterator. */
+    private static void addAll(ListIterator<AbstractInsnNode> it, InsnList insns) {
+        while (insns.size() > 0) {
+            AbstractInsnNode insn = insns.getFirst();
+            insns.remove(insn);
+            it.add(insn);
+        }
+    }
+
+    /** Returns the static flags describing the operand of a type test, whose type is null if unknown. */
+    private static int operandFlags(String lhsType) {
+        if (lhsType == null) {
+            return 0;
+        }
+        return SiteTable.OPERAND_KNOWN | (lhsType.startsWith("java/") ? SiteTable.JDK_OPERAND : 0);
+    }
+
+    /** Returns the type on top of the stack, or null in unreachable code, which has no frame. */
     private String getTopOfStack(Frame<BasicValue> frame) {
+        if (frame == null) {
+            return null;
+        }
         int topIdx = frame.getStackSize() - 1;
         BasicValue value = frame.getStack(topIdx);
         Type type = value.getType();
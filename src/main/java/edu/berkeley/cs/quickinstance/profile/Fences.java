@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.profile;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Memory fences for the snapshot seqlock, whose data lives in a mapped
+ * file and so cannot be ordered through volatile fields.
+ *
+ * <p>Uses the static fences of <tt>VarHandle</tt> where available (Java
+ * 9 and later), and those of <tt>sun.misc.Unsafe</tt> on Java 8. Both
+ * are looked up reflectively, so the code still compiles for Java 8
+ * without referring to internal APIs.</p>
+ *
+ * @author Rohan Padhye
+ */
+final class Fences {
+    private Fences() {}
+
+    private static final MethodHandle RELEASE;
+    private static final MethodHandle ACQUIRE;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodType fence = MethodType.methodType(void.class);
+        MethodHandle release, acquire;
+        try {
+            Class<?> varHandle = Class.forName("java.lang.invoke.VarHandle");
+            release = lookup.findStatic(varHandle, "releaseFence", fence);
+            acquire = lookup.findStatic(varHandle, "acquireFence", fence);
+        } catch (ReflectiveOperationException e) {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                Object unsafe = theUnsafe.get(null);
+                release = lookup.findVirtual(unsafeClass, "storeFence", fence).bindTo(unsafe);
+                acquire = lookup.findVirtual(unsafeClass, "loadFence", fence).bindTo(unsafe);
+            } catch (ReflectiveOperationException e2) {
+                throw new ExceptionInInitializerError(e2);
+            }
+        }
+        RELEASE = release;
+        ACQUIRE = acquire;
+    }
+
+    /** Keeps earlier loads and stores before later stores. */
+    static void release() {
+        try {
+            RELEASE.invokeExact();
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /** Keeps earlier loads before later loads and stores. */
+    static void acquire() {
+        try {
+            ACQUIRE.invokeExact();
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.profile;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Histogram of (receiver class, target class) pairs seen by type tests.
+ *
+ * <p>The histogram is a lock-free open-addressing hash table keyed by
+ * class identity. Entries are never removed, so a key is present if and
+ * only if it appears before the first empty slot of its probe sequence.
+ * Each entry carries its own counter, so an entry found in any version
+ * of the table counts towards the same total.</p>
+ *
+ * <p>When a table gets half full, one thread allocates a table twice
+ * the size and links it as the successor; the others keep going. The
+ * migrating thread freezes each slot: an empty slot becomes
+ * {@link #MOVED}, and an entry is copied to the successor and then
+ * wrapped in a {@link Frozen} box that lookups still match against.
+ * A lookup that reaches {@link #MOVED} knows the key is not in this
+ * table, and goes on to the successor without waiting for migration.
+ * A lookup that finds an empty slot in a table that is too full seals
+ * the slot with {@link #MOVED} itself before it moves on. Either way,
+ * the first empty slot of the key's probe sequence is sealed, and an
+ * entry can only be inserted there, so the key can no longer appear
+ * in the old table, where migration would later copy it over an entry
+ * inserted into the successor and split its count.</p>
+ *
+ * <p>Entries refer to classes weakly, so that profiling does not keep
+ * class loaders alive; they keep the class names for the report.</p>
+ *
+ * @author Rohan Padhye
+ */
+final class PairHistogram {
+    private PairHistogram() {}
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    /** Number of pairs printed when no report file is configured. */
+    private static final int REPORT_LIMIT = 20;
+
+    /** Number of distinct receivers above which a target is megamorphic. */
+    private static final int POLYMORPHIC_LIMIT = 4;
+
+    static final class Entry {
+        private static final AtomicLongFieldUpdater<Entry> COUNT =
+                AtomicLongFieldUpdater.newUpdater(Entry.class, "count");
+
+        final WeakReference<Class<?>> receiver;
+        final WeakReference<Class<?>> target;
+        final String receiverName;
+        final String targetName;
+        final int hash;
+        private volatile long count;
+
+        Entry(Class<?> receiver, Class<?> target, int hash) {
+            this.receiver = new WeakReference<>(receiver);
+            this.target = new WeakReference<>(target);
+            this.receiverName = receiver.getName();
+            this.targetName = target.getName();
+            this.hash = hash;
+        }
+
+        boolean matches(Class<?> receiver, Class<?> target) {
+            return this.receiver.get() == receiver && this.target.get() == target;
+        }
+
+        void increment() {
+            COUNT.getAndIncrement(this);
+        }
+
+        long count() {
+            return count;
+        }
+    }
+
+    /** A migrated entry; it still matches lookups in the old table. */
+    private static final class Frozen {
+        final Entry entry;
+
+        Frozen(Entry entry) {
+            this.entry = entry;
+        }
+    }
+
+    /** An empty slot that may no longer be filled. */
+    private static final Object MOVED = new Object();
+
+    private static final class Table {
+        private static final AtomicIntegerFieldUpdater<Table> SIZE =
+                AtomicIntegerFieldUpdater.newUpdater(Table.class, "size");
+        private static final AtomicReferenceFieldUpdater<Table, Table> NEXT =
+                AtomicReferenceFieldUpdater.newUpdater(Table.class, Table.class, "next");
+
+        final AtomicReferenceArray<Object> slots;
+        final int mask;
+        private volatile int size;
+        private volatile Table next;
+        private volatile boolean migrated;
+
+        Table(int capacity) {
+            this.slots = new AtomicReferenceArray<>(capacity);
+            this.mask = capacity - 1;
+        }
+    }
+
+    private static final AtomicReference<Table> table = new AtomicReference<>(new Table(INITIAL_CAPACITY));
+
+    static void record(Class<?> receiver, Class<?> target) {
+        int hash = hash(receiver, target);
+        Table t = table.get();
+        Entry e;
+        while ((e = findOrInsert(t, hash, receiver, target, null)) == null) {
+            t = t.next;
+        }
+        e.increment();
+    }
+
+    private static int hash(Class<?> receiver, Class<?> target) {
+        int h = System.identityHashCode(receiver) * 31 + System.identityHashCode(target);
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Finds the entry for a pair in one table, inserting <tt>fresh</tt>
+     * (or a new entry, if null) when absent. Returns null if the table
+     * is being migrated and the caller should retry in its successor;
+     * the pair is then sealed out of this table.
+     */
+    private static Entry findOrInsert(Table t, int hash, Class<?> receiver, Class<?> target, Entry fresh) {
+        for (int i = hash & t.mask, probes = 0; probes <= t.mask; i = (i + 1) & t.mask, probes++) {
+            Object o = t.slots.get(i);
+            if (o == null) {
+                if (t.size >= (t.mask + 1) / 2) {
+                    grow(t);
+                    if (t.slots.compareAndSet(i, null, MOVED)) {
+                        return null;
+                    }
+                } else {
+                    Entry e = fresh != null ? fresh : new Entry(receiver, target, hash);
+                    if (t.slots.compareAndSet(i, null, e)) {
+                        Table.SIZE.incrementAndGet(t);
+                        return e;
+                    }
+                }
+                o = t.slots.get(i);
+            }
+            if (o == MOVED) {
+                return null;
+            }
+            Entry e = o instanceof Frozen ? ((Frozen) o).entry : (Entry) o;
+            if (e == fresh || (receiver != null && e.matches(receiver, target))) {
+                return e;
+            }
+        }
+        // No empty slot is left, so nothing can be inserted here any more
+        grow(t);
+        return null;
+    }
+
+    /** Links a successor to a full table and, if this thread won, migrates into it. */
+    private static void grow(Table t) {
+        if (t.next != null || !Table.NEXT.compareAndSet(t, null, new Table((t.mask + 1) * 2))) {
+            return;
+        }
+        Table next = t.next;
+        for (int i = 0; i <= t.mask; i++) {
+            while (true) {
+                Object o = t.slots.get(i);
+                if (o == null) {
+                    if (t.slots.compareAndSet(i, null, MOVED)) {
+                        break;
+                    }
+                } else if (o == MOVED) {
+                    // Sealed by a lookup
+                    break;
+                } else {
+                    // Only the migrating thread changes occupied slots, so this cannot fail
+                    Entry e = (Entry) o;
+                    migrate(next, e);
+                    t.slots.set(i, new Frozen(e));
+                    break;
+                }
+            }
+        }
+        t.migrated = true;
+
+        // Publish the newest fully-populated table; lookups in older ones still work meanwhile
+        Table current;
+        while ((current = table.get()).migrated) {
+            table.compareAndSet(current, current.next);
+        }
+    }
+
+    private static void migrate(Table t, Entry e) {
+        // Entries whose classes were unloaded are carried over too, so that their counts are reported
+        Class<?> receiver = e.receiver.get();
+        Class<?> target = e.target.get();
+        while (findOrInsert(t, e.hash, receiver, target, e) == null) {
+            t = t.next;
+        }
+    }
+
+    /** Returns every entry, reading through all linked tables. */
+    static List<Entry> entries() {
+        Map<Entry, Boolean> seen = new IdentityHashMap<>();
+        for (Table t = table.get(); t != null; t = t.next) {
+            for (int i = 0; i <= t.mask; i++) {
+                Object o = t.slots.get(i);
+                if (o instanceof Entry) {
+                    seen.put((Entry) o, true);
+                } else if (o instanceof Frozen) {
+                    seen.put(((Frozen) o).entry, true);
+                }
+            }
+        }
+        return new ArrayList<>(seen.keySet());
+    }
+
+    /**
+     * Prints how many receiver classes each target type sees, and the
+     * most frequent pairs. If <tt>file</tt> is non-null, every pair is
+     * written there instead. Counts are multiplied by <tt>scale</tt>,
+     * the sampling rate.
+     */
+    static void report(PrintStream err, String file, int scale) {
+        List<Entry> entries = entries();
+        entries.sort(Comparator.comparingLong(Entry::count).reversed());
+
+        Map<String, Integer> receivers = new HashMap<>();
+        for (Entry e : entries) {
+            receivers.merge(e.targetName, 1, Integer::sum);
+        }
+        int mono = 0, poly = 0, mega = 0;
+        for (int n : receivers.values()) {
+            if (n == 1) {
+                mono++;
+            } else if (n <= POLYMORPHIC_LIMIT) {
+                poly++;
+            } else {
+                mega++;
+            }
+        }
+        err.printf("instanceof pairs: %d pairs, %d targets, monomorphic=%d, polymorphic=%d, megamorphic=%d\n",
+                entries.size(), receivers.size(), mono, poly, mega);
+
+        PrintStream out = err;
+        int limit = Math.min(entries.size(), REPORT_LIMIT);
+        if (file != null) {
+            try {
+                out = new PrintStream(file);
+                limit = entries.size();
+            } catch (FileNotFoundException e) {
+                err.printf("instanceof pairs: cannot write %s\n", file);
+            }
+        }
+        out.printf("%12s %9s  %s\n", "tests", "receivers", "receiver -> target");
+        for (int i = 0; i < limit; i++) {
+            Entry e = entries.get(i);
+            out.printf("%12d %9d  %s -> %s\n", e.count() * scale, receivers.get(e.targetName),
+                    e.receiverName, e.targetName);
+        }
+        if (out != err) {
+            out.close();
+        }
+    }
+}
@@ -28,65 +28,311 @@
  */
 package edu.berkeley.cs.quickinstance.profile;
 
+import java.io.IOException;
 import java.io.PrintStream;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
+ * Runtime hooks invoked by instrumented type tests.
+ *
+ * Besides <tt>instanceof</tt>, the hooks cover <tt>checkcast</tt>,
+ * {@link Class#isInstance(Object)}, {@link Class#isAssignableFrom(Class)}
+ * and entries into typed exception handlers, each counted separately
+ * (see {@link SiteKind}).
+ *
+ * Counters are {@link LongAdder}s, which stripe updates across cells
+ * so that threads running instrumented code do not contend on a single
+ * cache line. They are only summed when the report is printed.
+ *
+ * Instrumented classes also register their type-test sites, and pass
+ * the site ID to the hooks, so that counts can be reported per site
+ * (see {@link SiteCounters}). The per-site report is printed to the
+ * console, or written in full to the file named by the system
+ * property <tt>quickinstance.profile.siteReport</tt>.
+ *
+ * If the system property <tt>quickinstance.profile.pairs</tt> is set,
+ * the profiler also records how often each (receiver class, target
+ * class) pair is tested (see {@link PairHistogram}), which shows
+ * whether a target type is tested against one receiver class or many.
+ * The full histogram can be written to the file named by
+ * <tt>quickinstance.profile.pairReport</tt>.
+ *
+ * Setting <tt>quickinstance.profile.sampleRate</tt> to N records only
+ * one in N calls, using a countdown striped by thread ID, and scales
+ * the reported counts back up by N. Calls that are not sampled only
+ * read the current thread, decrement the countdown and branch.
+ *
+ * If <tt>quickinstance.profile.snapshotFile</tt> is set, snapshots of
+ * the counters are also written to that file every
+ * <tt>quickinstance.profile.snapshotInterval</tt> milliseconds (see
+ * {@link SnapshotWriter}), keeping the last
+ * <tt>quickinstance.profile.snapshotSlots</tt> snapshots.
+ *
  * @author Rohan Padhye
  */
 public class Profiler {
     private Profiler() {}
 
-    private static AtomicLong successes = new AtomicLong(0);
-    private static AtomicLong failures = new AtomicLong(0);
-    private static AtomicLong interfaces = new AtomicLong(0);
-    private static AtomicLong jdkLhs = new AtomicLong(0);
-    private static boolean jdkProfileOn = false;
+    private static final LongAdder[] successes = adders(SiteKind.values().length);
+    private static final LongAdder[] failures = adders(SiteKind.values().length);
+    private static final int INSTANCEOF = SiteKind.INSTANCEOF.ordinal();
+    private static final int CHECKCAST = SiteKind.CHECKCAST.ordinal();
+    private static final int IS_INSTANCE = SiteKind.IS_INSTANCE.ordinal();
+    private static final int IS_ASSIGNABLE_FROM = SiteKind.IS_ASSIGNABLE_FROM.ordinal();
+    private static final int CATCH = SiteKind.CATCH.ordinal();
+
+    private static final LongAdder interfaces = new LongAdder();
+    private static final LongAdder jdkLhs = new LongAdder();
+    private static volatile boolean jdkProfileOn = false;
+    private static final String siteReport = System.getProperty("quickinstance.profile.siteReport");
+    private static final boolean pairsOn = Boolean.getBoolean("quickinstance.profile.pairs");
+    private static final String pairReport = System.getProperty("quickinstance.profile.pairReport");
+    private static final int sampleRate = Math.max(1, Integer.getInteger("quickinstance.profile.sampleRate", 1));
+
+    private static final String snapshotFile = System.getProperty("quickinstance.profile.snapshotFile");
+    private static final long snapshotInterval = Long.getLong("quickinstance.profile.snapshotInterval", 1000);
+    private static final int snapshotSlots = Integer.getInteger("quickinstance.profile.snapshotSlots", 4096);
+
+    /** Distance between stripes of the countdown, in ints, so that each has its own cache lines. */
+    private static final int STRIPE_PAD = 32;
+    private static final int STRIPES = stripes();
+
+    /**
+     * Calls left until the next sampled one, striped by thread ID. Each
+     * stripe is written without synchronization; threads that share a
+     * stripe only perturb each other's intervals.
+     */
+    private static final int[] countdown = new int[STRIPES * STRIPE_PAD];
+
+    private static int stripes() {
+        int n = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 4) - 1) << 1;
+        return Math.max(n, 4);
+    }
+
+    /**
+     * Picks the number of calls until the next sample, uniformly from
+     * [1, 2N-1] so that the mean is N. A fixed interval would keep
+     * sampling the same iteration of a loop whose period divides N.
+     */
+    private static int nextInterval() {
+        return ThreadLocalRandom.current().nextInt(2 * sampleRate - 1) + 1;
+    }
+
 
     static {
         PrintStream out = System.err;
+        SnapshotWriter snapshots = null;
+        if (snapshotFile != null) {
+            try {
+                snapshots = new SnapshotWriter(snapshotFile, snapshotSlots, snapshotInterval);
+                snapshots.start();
+            } catch (IOException e) {
+                out.printf("[instrument] Cannot write profile snapshots to %s: %s\n", snapshotFile, e.getMessage());
+            }
+        }
+        final SnapshotWriter finalSnapshots = snapshots;
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            long s = successes.longValue();
-            long f = failures.longValue();
-            long i = interfaces.longValue();
-            long j = jdkProfileOn ? jdkLhs.longValue() : -1;
+            if (finalSnapshots != null) {
+                try {
+                    finalSnapshots.snapshot();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            long s = successes[INSTANCEOF].sum() * sampleRate;
+            long f = failures[INSTANCEOF].sum() * sampleRate;
+            long i = (interfaces.sum() + SiteCounters.tests(SiteKind.INSTANCEOF, SiteTable.TARGET_INTERFACE))
+                    * sampleRate;
+            long j = jdkProfileOn || SiteCounters.any(SiteTable.OPERAND_KNOWN) ?
+                    (jdkLhs.sum() + SiteCounters.tests(SiteKind.INSTANCEOF, SiteTable.JDK_OPERAND)) * sampleRate : -1;
             long total = s + f;
+            if (sampleRate > 1) {
+                out.printf("instanceof: sampled 1 in %d calls, counts are estimates\n", sampleRate);
+            }
             out.printf("instanceof: total=%d, success=%d (%.2f), fail=%d (%.2f), itf=%d (%.2f), jdk=%d (%.2f)\n",
                    total,
                    s, ((float) s)/((float) total),
                    f, ((float) f)/((float) total),
                    i, ((float) i)/((float) total),
                    j, j == -1 ? Float.NaN : ((float) j)/((float) total) );
+            for (SiteKind kind : SiteKind.values()) {
+                long ks = successes[kind.ordinal()].sum() * sampleRate;
+                long kf = failures[kind.ordinal()].sum() * sampleRate;
+                if (kind != SiteKind.INSTANCEOF && ks + kf > 0) {
+                    out.printf("%s: total=%d, success=%d (%.2f), fail=%d (%.2f)\n", kind.label(),
+                            ks + kf,
+                            ks, ((float) ks)/((float) (ks + kf)),
+                            kf, ((float) kf)/((float) (ks + kf)));
+                }
+            }
+            if (!SiteCounters.isEmpty()) {
+                SiteCounters.report(out, siteReport, sampleRate);
+            }
+            if (pairsOn) {
+                PairHistogram.report(out, pairReport, sampleRate);
+            }
         }));
     }
 
+    private static LongAdder[] adders(int n) {
+        LongAdder[] adders = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Copies the raw (unscaled) <tt>instanceof</tt> success, failure,
+     * interface and JDK-LHS totals into <tt>out</tt>.
+     */
+    static void totals(long[] out) {
+        out[0] = successes[INSTANCEOF].sum();
+        out[1] = failures[INSTANCEOF].sum();
+        out[2] = interfaces.sum() + SiteCounters.tests(SiteKind.INSTANCEOF, SiteTable.TARGET_INTERFACE);
+        out[3] = jdkLhs.sum() + SiteCounters.tests(SiteKind.INSTANCEOF, SiteTable.JDK_OPERAND);
+    }
+
+    static int sampleRate() {
+        return sampleRate;
+    }
+
     private static boolean _instanceOf(Object object, Class clazz) {
-        if (object == null) {
+        // Unlike isAssignableFrom(), isInstance() is a JIT intrinsic and is false for null
+        return clazz.isInstance(object);
+    }
+
+    /** Returns whether the current call should be recorded. */
+    private static boolean sample() {
+        if (sampleRate == 1) {
+            return true;
+        }
+        int stripe = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIPE_PAD;
+        if (--countdown[stripe] > 0) {
             return false;
-        } else {
-            return clazz.isAssignableFrom(object.getClass());
         }
+        countdown[stripe] = nextInterval();
+        return true;
+    }
 
+    private static void record(Object object, Class clazz, boolean success) {
+        record(INSTANCEOF, object, clazz, success);
+        if (clazz.isInterface()) {
+            interfaces.increment();
+        }
     }
 
-    public static boolean instanceOf(Object object, Class clazz) {
-        final boolean success = _instanceOf(object, clazz);
+    private static void record(int kind, Object object, Class clazz, boolean success) {
         if (success) {
-            successes.incrementAndGet();
+            successes[kind].increment();
         } else {
-            failures.incrementAndGet();
+            failures[kind].increment();
         }
-        if (clazz.isInterface()) {
-            interfaces.incrementAndGet();
+        if (pairsOn && object != null) {
+            PairHistogram.record(object.getClass(), clazz);
+        }
+    }
+
+    private static void recordSite(int site, boolean success) {
+        SiteCounters.record(site, success ? SiteCounters.SUCCESS : SiteCounters.FAILURE);
+    }
+
+    private static void recordLhs(Class lhs) {
+        // Only write the flag once, so that it does not become a shared hot spot
+        if (!jdkProfileOn) {
+            jdkProfileOn = true;
+        }
+        if (lhs.getName().startsWith("java.")) {
+            jdkLhs.increment();
+        }
+    }
+
+    /**
+     * Profiles an <tt>instanceof</tt> that has no registered site; the
+     * site facts are looked up on each call.
+     */
+    public static boolean instanceOf(Object object, Class clazz) {
+        final boolean success = _instanceOf(object, clazz);
+        if (sample()) {
+            record(object, clazz, success);
         }
         return success;
     }
 
     public static boolean instanceOf(Object object, Class lhs, Class rhs) {
-        jdkProfileOn = true;
-        if (lhs.getName().startsWith("java.")) {
-            jdkLhs.incrementAndGet();
+        final boolean success = _instanceOf(object, rhs);
+        if (sample()) {
+            recordLhs(lhs);
+            record(object, rhs, success);
+        }
+        return success;
+    }
+
+    /**
+     * Registers the type-test sites of an instrumented class.
+     *
+     * @param sites site descriptors, in chunks of newline-separated
+     *              descriptors (each chunk is one constant-pool string;
+     *              see {@link SiteCounters#register})
+     * @return the global ID of the first site, with
+     *         {@link SiteCounters#REGISTERED} set
+     */
+    public static int registerSites(String[] sites) {
+        return SiteCounters.register(sites) | SiteCounters.REGISTERED;
+    }
+
+    /**
+     * Profiles an <tt>instanceof</tt> at a registered site. Whether the
+     * type is an interface, and the static type of the operand, are
+     * registered with the site, so they are not looked up here.
+     */
+    public static boolean instanceOf(Object object, Class clazz, int site) {
+        final boolean success = _instanceOf(object, clazz);
+        if (sample()) {
+            record(INSTANCEOF, object, clazz, success);
+            recordSite(site, success);
+        }
+        return success;
+    }
+
+    /**
+     * Profiles a <tt>checkcast</tt>, which is left in place after this
+     * hook so that failures still throw. Null always passes.
+     */
+    public static void checkCast(Object object, Class clazz, int site) {
+        if (sample()) {
+            final boolean success = object == null || clazz.isInstance(object);
+            record(CHECKCAST, object, clazz, success);
+            recordSite(site, success);
+        }
+    }
+
+    /** Replaces <tt>clazz.isInstance(object)</tt>. */
+    public static boolean isInstance(Class clazz, Object object, int site) {
+        final boolean success = clazz.isInstance(object);
+        if (sample()) {
+            record(IS_INSTANCE, object, clazz, success);
+            recordSite(site, success);
+        }
+        return success;
+    }
+
+    /** Replaces <tt>clazz.isAssignableFrom(other)</tt>. */
+    public static boolean isAssignableFrom(Class clazz, Class other, int site) {
+        final boolean success = clazz.isAssignableFrom(other);
+        if (sample()) {
+            record(IS_ASSIGNABLE_FROM, null, clazz, success);
+            recordSite(site, success);
+        }
+        return success;
+    }
+
+    /** Profiles entry into an exception handler; the handler's type test has already succeeded. */
+    public static void caught(int site) {
+        if (sample()) {
+            record(CATCH, null, Throwable.class, true);
+            recordSite(site, true);
         }
-        return instanceOf(object, rhs);
     }
 }
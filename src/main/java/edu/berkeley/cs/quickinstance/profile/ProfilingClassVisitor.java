@@ -28,6 +28,7 @@
  */
 package edu.berkeley.cs.quickinstance.profile;
 
+import edu.berkeley.cs.quickinstance.ClassHierarchy;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
@@ -38,11 +39,15 @@ import org.objectweb.asm.Opcodes;
 public class ProfilingClassVisitor extends ClassVisitor {
 
     private final String className;
+    private final SiteTable sites;
+    private final ClassHierarchy hierarchy;
     private String superName;
 
-    public ProfilingClassVisitor(ClassVisitor cv, String className) {
+    public ProfilingClassVisitor(ClassVisitor cv, String className, SiteTable sites, ClassHierarchy hierarchy) {
         super(Opcodes.ASM5, cv);
         this.className = className;
+        this.sites = sites;
+        this.hierarchy = hierarchy;
     }
 
     @Override
@@ -62,7 +67,7 @@ public class ProfilingClassVisitor extends ClassVisitor {
                                      String signature, String[] exceptions) {
         MethodVisitor mv = cv.visitMethod(access, name, desc, signature, exceptions);
         if (mv != null) {
-            return new ProfilingMethodVisitor(mv, className, name, desc, superName);
+            return new ProfilingMethodVisitor(mv, className, name, desc, superName, sites, hierarchy);
         }
         return null;
     }
@@ -28,6 +28,12 @@
  */
 package edu.berkeley.cs.quickinstance.profile;
 
+import java.util.HashSet;
+import java.util.Set;
+
+import edu.berkeley.cs.quickinstance.ClassHierarchy;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
 
@@ -38,29 +44,182 @@ import static org.objectweb.asm.Opcodes.*;
  */
 public class ProfilingMethodVisitor extends MethodVisitor {
 
+    static final String PROFILER = "edu/berkeley/cs/quickinstance/profile/Profiler";
+
     private final String className;
     private final String methodName;
     private final String descriptor;
     private final String superName;
+    private final SiteTable sites;
+    private final ClassHierarchy hierarchy;
+
+    /** Index of the next real instruction in this method. */
+    private int insnIndex = 0;
+
+    /** The current source line, if known. */
+    private int line = -1;
+
+    /** Entry labels of handlers that catch a specific type, and have not been visited yet. */
+    private final Set<Label> handlers = new HashSet<>();
 
     public ProfilingMethodVisitor(MethodVisitor mv, String className,
-                                         String methodName, String descriptor, String superName) {
+                                         String methodName, String descriptor, String superName,
+                                         SiteTable sites, ClassHierarchy hierarchy) {
         super(ASM5, mv);
         this.className = className;
         this.methodName = methodName;
         this.descriptor = descriptor;
         this.superName = superName;
+        this.sites = sites;
+        this.hierarchy = hierarchy;
     }
 
     @Override
     public void visitTypeInsn(int opcode,
                               String type) {
         if (opcode == INSTANCEOF) {
+            int site = sites.add(SiteKind.INSTANCEOF, targetFlags(hierarchy, type), methodName, descriptor, insnIndex, line);
+            mv.visitLdcInsn(Type.getObjectType(type));
+            sites.loadSiteId(site).accept(mv);
+            mv.visitMethodInsn(INVOKESTATIC, PROFILER,
+                    "instanceOf", "(Ljava/lang/Object;Ljava/lang/Class;I)Z", false);
+        } else if (opcode == CHECKCAST) {
+            // Profile a copy of the operand, and keep the cast itself so that failures still throw
+            int site = sites.add(SiteKind.CHECKCAST, targetFlags(hierarchy, type), methodName, descriptor, insnIndex, line);
+            mv.visitInsn(DUP);
             mv.visitLdcInsn(Type.getObjectType(type));
-            mv.visitMethodInsn(INVOKESTATIC, "edu/berkeley/cs/quickinstance/profile/Profiler",
-                    "instanceOf", "(Ljava/lang/Object;Ljava/lang/Class;)Z", false);
+            sites.loadSiteId(site).accept(mv);
+            mv.visitMethodInsn(INVOKESTATIC, PROFILER,
+                    "checkCast", "(Ljava/lang/Object;Ljava/lang/Class;I)V", false);
+            mv.visitTypeInsn(opcode, type);
         } else {
             mv.visitTypeInsn(opcode, type);
         }
+        insnIndex++;
+    }
+
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+        SiteKind kind = reflectiveTypeTest(opcode, owner, name, desc);
+        if (kind != null) {
+            // The receiver and argument are already on the stack, so only the site ID is added
+            int site = sites.add(kind, 0, methodName, descriptor, insnIndex, line);
+            sites.loadSiteId(site).accept(mv);
+            mv.visitMethodInsn(INVOKESTATIC, PROFILER, name,
+                    "(Ljava/lang/Class;" + desc.substring(1, desc.indexOf(')')) + "I)Z", false);
+        } else {
+            super.visitMethodInsn(opcode, owner, name, desc, itf);
+        }
+        insnIndex++;
+    }
+
+    /** Returns the static flags of a site that tests against a constant type. */
+    static int targetFlags(ClassHierarchy hierarchy, String type) {
+        return hierarchy.isInterface(type) ? SiteTable.TARGET_INTERFACE : 0;
+    }
+
+    static SiteKind reflectiveTypeTest(int opcode, String owner, String name, String desc) {
+        if (opcode != INVOKEVIRTUAL || !owner.equals("java/lang/Class")) {
+            return null;
+        } else if (name.equals("isInstance") && desc.equals("(Ljava/lang/Object;)Z")) {
+            return SiteKind.IS_INSTANCE;
+        } else if (name.equals("isAssignableFrom") && desc.equals("(Ljava/lang/Class;)Z")) {
+            return SiteKind.IS_ASSIGNABLE_FROM;
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+        // Handlers for finally blocks and catch-all do not test a type
+        if (type != null) {
+            handlers.add(handler);
+        }
+        super.visitTryCatchBlock(start, end, handler, type);
+    }
+
+    @Override
+    public void visitLabel(Label label) {
+        super.visitLabel(label);
+        if (handlers.remove(label)) {
+            int site = sites.add(SiteKind.CATCH, 0, methodName, descriptor, insnIndex, line);
+            sites.loadSiteId(site).accept(mv);
+            mv.visitMethodInsn(INVOKESTATIC, PROFILER, "caught", "(I)V", false);
+        }
+    }
+
+    @Override
+    public void visitLineNumber(int line, Label start) {
+        this.line = line;
+        super.visitLineNumber(line, start);
+    }
+
+    // The remaining visit methods only keep track of the instruction index
+
+    @Override
+    public void visitInsn(int opcode) {
+        insnIndex++;
+        super.visitInsn(opcode);
+    }
+
+    @Override
+    public void visitIntInsn(int opcode, int operand) {
+        insnIndex++;
+        super.visitIntInsn(opcode, operand);
+    }
+
+    @Override
+    public void visitVarInsn(int opcode, int var) {
+        insnIndex++;
+        super.visitVarInsn(opcode, var);
+    }
+
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+        insnIndex++;
+        super.visitFieldInsn(opcode, owner, name, desc);
+    }
+
+    @Override
+    public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+        insnIndex++;
+        super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+        insnIndex++;
+        super.visitJumpInsn(opcode, label);
+    }
+
+    @Override
+    public void visitLdcInsn(Object cst) {
+        insnIndex++;
+        super.visitLdcInsn(cst);
+    }
+
+    @Override
+    public void visitIincInsn(int var, int increment) {
+        insnIndex++;
+        super.visitIincInsn(var, increment);
+    }
+
+    @Override
+    public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+        insnIndex++;
+        super.visitTableSwitchInsn(min, max, dflt, labels);
+    }
+
+    @Override
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+        insnIndex++;
+        super.visitLookupSwitchInsn(dflt, keys, labels);
+    }
+
+    @Override
+    public void visitMultiANewArrayInsn(String desc, int dims) {
+        insnIndex++;
+        super.visitMultiANewArrayInsn(desc, dims);
     }
 }
@@ -32,10 +32,11 @@ import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
 
+import edu.berkeley.cs.quickinstance.ClassHierarchy;
 import edu.berkeley.cs.quickinstance.SafeClassWriter;
 import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
 
 /**
  * @author Rohan Padhye
@@ -55,8 +56,12 @@ public class ProfilingTransformer implements ClassFileTransformer {
                 ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
 
         try {
-            ClassVisitor cv = new ProfilingClassVisitor(cw, className);
-            cr.accept(cv, 0);
+            // Buffer the instrumented class, so that the sites found can be registered in its initializer
+            ClassNode cn = new ClassNode();
+            SiteTable sites = new SiteTable(className);
+            cr.accept(new ProfilingClassVisitor(cn, className, sites, new ClassHierarchy(loader)), 0);
+            sites.emit(cn);
+            cn.accept(cw);
         } catch (Throwable e) {
             System.err.printf("[instrument] %s could not be instrumented: %s\n", className, e.getMessage());
             return null;
@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.profile;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-site counters for instrumented type tests.
+ *
+ * <p>Counters live in chunks of a primitive array, with a fixed number
+ * of slots per site, so that recording is an array index and an
+ * increment with no boxing, hashing or allocation. Each chunk has one
+ * copy per stripe of threads (picked by thread ID), allocated when a
+ * thread of the stripe first records a site of the chunk, and the
+ * copies are summed when counts are read; so threads running the same
+ * sites do not share cache lines. Chunks are never moved once
+ * allocated, so registering new sites never loses counts. Increments
+ * are not atomic, so counts are approximate when threads of the same
+ * stripe run the same site at once.</p>
+ *
+ * <p>The IDs that instrumented code passes to the hooks have
+ * {@link #REGISTERED} set. A site that runs before the static
+ * initializer of its class has registered it (for instance, when a
+ * superclass initializer calls into the subclass) passes its bare
+ * local ID, and is not counted.</p>
+ *
+ * <p>Registration is serialized on this class, but readers of
+ * registered sites ({@link #count}, {@link #name}, {@link #tests}) do
+ * not lock: arrays are only replaced by grown copies, and everything
+ * about a site is written before {@link #registered} is published.</p>
+ *
+ * @author Rohan Padhye
+ */
+final class SiteCounters {
+    private SiteCounters() {}
+
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    static final int SUCCESS = 0;
+    static final int FAILURE = 1;
+    private static final int SLOTS = 2;
+
+    /** Set in the site IDs passed to the hooks; see {@link Profiler#registerSites}. */
+    static final int REGISTERED = Integer.MIN_VALUE;
+
+    /** Number of copies of each chunk; a power of two. */
+    private static final int STRIPES = stripes();
+
+    /** Number of sites printed when no report file is configured. */
+    private static final int REPORT_LIMIT = 20;
+
+    /** Counters by chunk and stripe; a stripe's copy of a chunk is null until first used. */
+    private static volatile long[][][] chunks = new long[0][][];
+    private static volatile String[] names = new String[CHUNK_SIZE];
+    /** The kind and static flags of each site, as <tt>kind &lt;&lt; 16 | flags</tt>. */
+    private static volatile int[] info = new int[CHUNK_SIZE];
+    /** The first site of the chain each site is in, or -1; and the site's position in the chain. */
+    private static int[] chainHead = new int[CHUNK_SIZE];
+    private static int[] chainPosition = new int[CHUNK_SIZE];
+    private static volatile int registered;
+
+    /**
+     * Registers newline-separated site descriptors and returns the
+     * global ID of the first one. Later sites get consecutive IDs.
+     * Each descriptor is the kind label, the site flags, the chain
+     * (<tt>head.position</tt> with the head relative to the first site
+     * of the class, or <tt>-</tt>) and the site name, separated by
+     * spaces.
+     */
+    static synchronized int register(String[] descriptors) {
+        int base = registered;
+        int id = base;
+        for (String chunk : descriptors) {
+            for (String site : chunk.split("\n")) {
+                if (!site.isEmpty()) {
+                    String[] fields = site.split(" ", 4);
+                    SiteKind kind = SiteKind.fromLabel(fields[0]);
+                    if (id == info.length) {
+                        names = Arrays.copyOf(names, id * 2);
+                        info = Arrays.copyOf(info, id * 2);
+                        chainHead = Arrays.copyOf(chainHead, id * 2);
+                        chainPosition = Arrays.copyOf(chainPosition, id * 2);
+                    }
+                    info[id] = kind.ordinal() << 16 | Integer.parseInt(fields[1]);
+                    int dot = fields[2].indexOf('.');
+                    chainHead[id] = dot > 0 ? base + Integer.parseInt(fields[2].substring(0, dot)) : -1;
+                    chainPosition[id] = dot > 0 ? Integer.parseInt(fields[2].substring(dot + 1)) : 0;
+                    names[id++] = kind.label() + " " + fields[3];
+                }
+            }
+        }
+
+        int needed = (id + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+        if (needed > chunks.length) {
+            long[][][] grown = Arrays.copyOf(chunks, needed);
+            for (int i = chunks.length; i < needed; i++) {
+                grown[i] = new long[STRIPES][];
+            }
+            chunks = grown;
+        }
+        registered = id;
+        return base;
+    }
+
+    private static int stripes() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        return processors <= 1 ? 1 : Math.min(Integer.highestOneBit(processors - 1) << 1, 32);
+    }
+
+    /** Records a test at a site, given the ID passed to the hook. */
+    static void record(int site, int slot) {
+        if ((site & REGISTERED) == 0) {
+            // The class has not registered its sites yet
+            return;
+        }
+        site &= ~REGISTERED;
+        long[][] copies = chunks[site >>> CHUNK_BITS];
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        long[] counts = copies[stripe];
+        if (counts == null) {
+            counts = allocate(copies, stripe);
+        }
+        counts[(site & CHUNK_MASK) * SLOTS + slot]++;
+    }
+
+    private static synchronized long[] allocate(long[][] copies, int stripe) {
+        if (copies[stripe] == null) {
+            copies[stripe] = new long[CHUNK_SIZE * SLOTS];
+        }
+        return copies[stripe];
+    }
+
+    private static long get(long[][][] chunks, int site, int slot) {
+        long sum = 0;
+        for (long[] counts : chunks[site >>> CHUNK_BITS]) {
+            if (counts != null) {
+                sum += counts[(site & CHUNK_MASK) * SLOTS + slot];
+            }
+        }
+        return sum;
+    }
+
+    /** Returns the number of registered sites, without locking. */
+    static int registered() {
+        return registered;
+    }
+
+    /** Reads a counter of a registered site, without locking. */
+    static long count(int site, int slot) {
+        return get(chunks, site, slot);
+    }
+
+    /** Returns the name of a registered site, without locking. */
+    static String name(int site) {
+        return names[site];
+    }
+
+    /**
+     * Sums the tests at sites of the given kind that have all of the
+     * given static flags, without locking.
+     */
+    static long tests(SiteKind kind, int flags) {
+        int registered = SiteCounters.registered;
+        int[] info = SiteCounters.info;
+        long[][][] chunks = SiteCounters.chunks;
+        long sum = 0;
+        for (int site = 0; site < registered; site++) {
+            if (info[site] >>> 16 == kind.ordinal() && (info[site] & flags) == flags) {
+                sum += get(chunks, site, SUCCESS) + get(chunks, site, FAILURE);
+            }
+        }
+        return sum;
+    }
+
+    /** Returns true if any site has all of the given static flags. */
+    static synchronized boolean any(int flags) {
+        for (int site = 0; site < registered; site++) {
+            if ((info[site] & flags) == flags) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static synchronized boolean isEmpty() {
+        return registered == 0;
+    }
+
+    /**
+     * Prints chains of type tests on the same value, ranked by wasted
+     * tests, that is, tests that failed and passed control to the next
+     * test. Chains with much waste are candidates for reordering, or for
+     * a switch on the type.
+     */
+    private static void reportChains(PrintStream out, int limit, int scale) {
+        final long[][][] chunks = SiteCounters.chunks;
+        Map<Integer, List<Integer>> chains = new HashMap<>();
+        for (int site = 0; site < registered; site++) {
+            if (chainHead[site] >= 0) {
+                chains.computeIfAbsent(chainHead[site], head -> new ArrayList<>()).add(site);
+            }
+        }
+        if (chains.isEmpty()) {
+            return;
+        }
+        List<List<Integer>> order = new ArrayList<>(chains.values());
+        for (List<Integer> chain : order) {
+            chain.sort(Comparator.comparingInt(site -> chainPosition[site]));
+        }
+        order.sort(Comparator.comparingLong((List<Integer> chain) -> wasted(chunks, chain)).reversed());
+
+        out.printf("instanceof chains: %d found\n", order.size());
+        out.printf("%12s %12s %12s  %s\n", "wasted", "entries", "tests/entry", "chain");
+        for (int i = 0; i < Math.min(limit, order.size()); i++) {
+            List<Integer> chain = order.get(i);
+            long entries = 0, tests = 0;
+            StringBuilder hits = new StringBuilder();
+            for (int site : chain) {
+                long s = get(chunks, site, SUCCESS);
+                long f = get(chunks, site, FAILURE);
+                if (site == chain.get(0)) {
+                    entries = s + f;
+                }
+                tests += s + f;
+                hits.append(s * scale).append(' ');
+            }
+            long none = get(chunks, chain.get(chain.size() - 1), FAILURE);
+            out.printf("%12d %12d %12.2f  %s (%d tests)\n", wasted(chunks, chain) * scale, entries * scale,
+                    entries == 0 ? Double.NaN : ((double) tests) / entries, names[chain.get(0)], chain.size());
+            out.printf("%12s hits by position: %snone: %d\n", "", hits, none * scale);
+        }
+    }
+
+    private static long wasted(long[][][] chunks, List<Integer> chain) {
+        long wasted = 0;
+        for (int site : chain) {
+            wasted += get(chunks, site, FAILURE);
+        }
+        return wasted;
+    }
+
+    /**
+     * Writes all sites, hottest first, to the given file; or if
+     * <tt>file</tt> is null, prints the hottest few sites. Counts are
+     * multiplied by <tt>scale</tt>, the sampling rate.
+     */
+    static synchronized void report(PrintStream err, String file, int scale) {
+        final long[][][] chunks = SiteCounters.chunks;
+        Integer[] order = new Integer[registered];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(
+                (Integer site) -> get(chunks, site, SUCCESS) + get(chunks, site, FAILURE)).reversed());
+
+        PrintStream out = err;
+        int limit = Math.min(order.length, REPORT_LIMIT);
+        if (file != null) {
+            try {
+                out = new PrintStream(file);
+                limit = order.length;
+            } catch (FileNotFoundException e) {
+                err.printf("type-test sites: cannot write %s\n", file);
+            }
+        }
+
+        out.printf("type-test sites: %d registered\n", order.length);
+        out.printf("%12s %12s %12s  %s\n", "tests", "success", "fail", "site");
+        for (int i = 0; i < limit; i++) {
+            int site = order[i];
+            long s = get(chunks, site, SUCCESS) * scale;
+            long f = get(chunks, site, FAILURE) * scale;
+            out.printf("%12d %12d %12d  %s\n", s + f, s, f, names[site]);
+        }
+        reportChains(out, limit, scale);
+        if (out != err) {
+            out.close();
+        }
+    }
+}
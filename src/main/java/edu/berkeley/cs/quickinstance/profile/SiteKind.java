@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.profile;
+
+/**
+ * The forms of dynamic type test that can be profiled.
+ *
+ * @author Rohan Padhye
+ */
+public enum SiteKind {
+    /** The <tt>instanceof</tt> bytecode. */
+    INSTANCEOF("instanceof"),
+    /** The <tt>checkcast</tt> bytecode. */
+    CHECKCAST("checkcast"),
+    /** Calls to {@link Class#isInstance(Object)}. */
+    IS_INSTANCE("isInstance"),
+    /** Calls to {@link Class#isAssignableFrom(Class)}. */
+    IS_ASSIGNABLE_FROM("isAssignableFrom"),
+    /** Entries into exception handlers that catch a specific type. */
+    CATCH("catch");
+
+    private final String label;
+
+    SiteKind(String label) {
+        this.label = label;
+    }
+
+    /** Returns the name used for this kind in site descriptors and reports. */
+    public String label() {
+        return label;
+    }
+
+    /** Returns the kind with the given label. */
+    public static SiteKind fromLabel(String label) {
+        for (SiteKind kind : values()) {
+            if (kind.label.equals(label)) {
+                return kind;
+            }
+        }
+        throw new IllegalArgumentException("Unknown site kind: " + label);
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.profile;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.berkeley.cs.quickinstance.StaticInitializer;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * The profiling sites of a single class, collected at instrumentation time.
+ *
+ * <p>Each site gets a local ID, which is its position in the class. Since
+ * instrumented classes may be cached and loaded in any order across runs,
+ * global IDs are only assigned at run time: the static initializer of the
+ * instrumented class registers all of its sites with the {@link Profiler},
+ * which returns the global ID of the first one. That base ID is stored in
+ * a synthetic static field, and each site passes <tt>base + local</tt> to
+ * its runtime hook.</p>
+ *
+ * <p>Facts about a site that do not change at run time, such as whether
+ * the tested type is an interface, are worked out here and registered
+ * with the site, so that the runtime hooks need not compute them.</p>
+ *
+ * @author Rohan Padhye
+ */
+public class SiteTable {
+
+    static final String BASE_FIELD = "__qiSiteBase__";
+
+    /** Site flag: the tested type is an interface. */
+    public static final int TARGET_INTERFACE = 1;
+    /** Site flag: the static type of the tested value is known. */
+    public static final int OPERAND_KNOWN = 2;
+    /** Site flag: the static type of the tested value is in <tt>java.*</tt>. */
+    public static final int JDK_OPERAND = 4;
+
+    /** Maximum length of a single string constant holding site descriptors. */
+    private static final int MAX_CHUNK = 16 * 1024;
+
+    private final String className;
+    private final List<Site> sites = new ArrayList<>();
+
+    private static final class Site {
+        final SiteKind kind;
+        final int flags;
+        final String name;
+        int chainHead = -1;
+        int chainPosition;
+
+        Site(SiteKind kind, int flags, String name) {
+            this.kind = kind;
+            this.flags = flags;
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            String chain = chainHead >= 0 ? chainHead + "." + chainPosition : "-";
+            return kind.label() + " " + flags + " " + chain + " " + name;
+        }
+    }
+
+    public SiteTable(String className) {
+        this.className = className;
+    }
+
+    /**
+     * Adds a site and returns its local ID.
+     *
+     * @param kind      the form of type test at this site
+     * @param flags     facts about the site that are known statically
+     * @param insnIndex the index of the instruction among the real
+     *                  instructions of the method
+     * @param line      the source line, or <tt>-1</tt> if unknown
+     */
+    public int add(SiteKind kind, int flags, String methodName, String methodDesc, int insnIndex, int line) {
+        StringBuilder name = new StringBuilder();
+        name.append(className).append('#').append(methodName).append(methodDesc)
+                .append('@').append(insnIndex);
+        if (line >= 0) {
+            name.append(':').append(line);
+        }
+        sites.add(new Site(kind, flags, name.toString()));
+        return sites.size() - 1;
+    }
+
+    /**
+     * Marks a site as a link in a chain of type tests on the same value,
+     * where each test only runs if the previous one failed.
+     *
+     * @param head     the local ID of the first site in the chain
+     * @param position the position of this site in the chain, from 0
+     */
+    public void setChain(int site, int head, int position) {
+        sites.get(site).chainHead = head;
+        sites.get(site).chainPosition = position;
+    }
+
+    public boolean isEmpty() {
+        return sites.isEmpty();
+    }
+
+    /** Returns instructions that push the global ID of a site. */
+    public InsnList loadSiteId(int localId) {
+        InsnList insns = new InsnList();
+        insns.add(new FieldInsnNode(GETSTATIC, className, BASE_FIELD, "I"));
+        insns.add(pushInt(localId));
+        insns.add(new InsnNode(IADD));
+        return insns;
+    }
+
+    /**
+     * Adds the base ID field to the class, and prepends the registration of
+     * all sites to its static initializer (which is created if necessary).
+     */
+    public void emit(ClassNode classNode) {
+        if (sites.isEmpty()) {
+            return;
+        }
+
+        boolean isInterface = (classNode.access & ACC_INTERFACE) != 0;
+        classNode.fields.add(new FieldNode((isInterface ? ACC_PUBLIC : ACC_PRIVATE) | ACC_STATIC | ACC_FINAL | ACC_SYNTHETIC,
+                BASE_FIELD, "I", null, null));
+
+        // Sites are passed as newline-separated chunks, to stay within the constant pool limits
+        List<String> chunks = new ArrayList<>();
+        StringBuilder chunk = new StringBuilder();
+        for (Site site : sites) {
+            String desc = site.toString();
+            if (chunk.length() > 0 && chunk.length() + desc.length() >= MAX_CHUNK) {
+                chunks.add(chunk.toString());
+                chunk.setLength(0);
+            }
+            chunk.append(desc).append('\n');
+        }
+        chunks.add(chunk.toString());
+
+        InsnList insns = new InsnList();
+        insns.add(pushInt(chunks.size()));
+        insns.add(new TypeInsnNode(ANEWARRAY, "java/lang/String"));
+        for (int i = 0; i < chunks.size(); i++) {
+            insns.add(new InsnNode(DUP));
+            insns.add(pushInt(i));
+            insns.add(new LdcInsnNode(chunks.get(i)));
+            insns.add(new InsnNode(AASTORE));
+        }
+        insns.add(new MethodInsnNode(INVOKESTATIC, "edu/berkeley/cs/quickinstance/profile/Profiler",
+                "registerSites", "([Ljava/lang/String;)I", false));
+        insns.add(new FieldInsnNode(PUTSTATIC, className, BASE_FIELD, "I"));
+        StaticInitializer.prepend(classNode, insns);
+    }
+
+    private static AbstractInsnNode pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            return new InsnNode(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            return new IntInsnNode(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            return new IntInsnNode(SIPUSH, value);
+        } else {
+            return new LdcInsnNode(value);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.profile;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static edu.berkeley.cs.quickinstance.profile.SnapshotWriter.*;
+
+/**
+ * Converts a profile snapshot ring written by {@link SnapshotWriter}
+ * to CSV, optionally following the file while the profiled process is
+ * still running.
+ *
+ * <p>Each snapshot gives one <tt>total</tt> row and one row for each of
+ * its hottest sites. Counts are cumulative and scaled by the sampling
+ * rate.</p>
+ *
+ * @author Rohan Padhye
+ */
+public class SnapshotReader {
+
+    private static final long POLL_MILLIS = 200;
+
+    private final MappedByteBuffer buf;
+    private final int slotCount;
+    private final String namesFile;
+    private final List<String> names = new ArrayList<>();
+
+    public SnapshotReader(String file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            this.buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        if (buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC) {
+            throw new IOException("Not a profile snapshot file: " + file);
+        }
+        if (buf.getInt(4) != VERSION || buf.getInt(SLOT_SIZE_POS) != SLOT_SIZE) {
+            throw new IOException("Unsupported snapshot format version " + buf.getInt(4));
+        }
+        this.slotCount = buf.getInt(SLOT_COUNT_POS);
+        this.namesFile = file + ".sites";
+    }
+
+    /** Returns the number of snapshots written so far, including any overwritten ones. */
+    public long written() {
+        return buf.getLong(WRITTEN_POS);
+    }
+
+    /** Returns the index of the oldest snapshot still in the ring. */
+    public long oldest() {
+        return Math.max(0, written() - slotCount);
+    }
+
+    /**
+     * Prints snapshot <tt>n</tt> as CSV rows. Returns false if the slot
+     * was overwritten (or is being written), in which case nothing is
+     * printed.
+     */
+    public boolean print(long n, PrintStream out) throws IOException {
+        int slot = HEADER_SIZE + (int) (n % slotCount) * SLOT_SIZE;
+        long seq = 2 * n + 2;
+        if (buf.getLong(slot + SEQ) != seq) {
+            return false;
+        }
+        Fences.acquire();
+
+        long time = buf.getLong(slot + TIME);
+        long rate = buf.getInt(slot + SAMPLE_RATE);
+        long[] totals = new long[4];
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] = buf.getLong(slot + TOTALS + 8 * i) * rate;
+        }
+        int entries = Math.min(buf.getInt(slot + ENTRIES), MAX_SITES);
+        int[] sites = new int[entries];
+        long[] counts = new long[2 * entries];
+        for (int i = 0; i < entries; i++) {
+            int pos = slot + SLOT_HEADER_SIZE + i * SITE_ENTRY_SIZE;
+            sites[i] = buf.getInt(pos);
+            counts[2 * i] = buf.getLong(pos + 4) * rate;
+            counts[2 * i + 1] = buf.getLong(pos + 12) * rate;
+        }
+
+        Fences.acquire();
+        if (buf.getLong(slot + SEQ) != seq) {
+            return false;
+        }
+
+        out.printf("%d,%d,total,,%d,%d,%d,%d\n", n, time, totals[0], totals[1], totals[2], totals[3]);
+        for (int i = 0; i < entries; i++) {
+            out.printf("%d,%d,%d,%s,%d,%d,,\n", n, time, sites[i], quote(name(sites[i])),
+                    counts[2 * i], counts[2 * i + 1]);
+        }
+        return true;
+    }
+
+    private String name(int site) throws IOException {
+        if (site >= names.size()) {
+            // The writer appends names before publishing the snapshots that use them
+            names.clear();
+            try (BufferedReader in = new BufferedReader(new FileReader(namesFile))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    names.add(line);
+                }
+            }
+        }
+        return site < names.size() ? names.get(site) : "";
+    }
+
+    private static String quote(String s) {
+        return s.indexOf(',') >= 0 || s.indexOf('"') >= 0 ? '"' + s.replace("\"", "\"\"") + '"' : s;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        boolean follow = false;
+        String file = null;
+        for (String arg : args) {
+            if (arg.equals("-f")) {
+                follow = true;
+            } else {
+                file = arg;
+            }
+        }
+        if (file == null) {
+            System.err.println("Usage: java " + SnapshotReader.class.getName() + " [-f] snapshotFile");
+            System.exit(1);
+        }
+
+        SnapshotReader reader = new SnapshotReader(file);
+        PrintStream out = System.out;
+        out.println("snapshot,time,site,name,success,fail,itf,jdk");
+        long next = reader.oldest();
+        do {
+            long written = reader.written();
+            for (; next < written; next++) {
+                // Skip snapshots that the writer lapped before we got to them
+                next = Math.max(next, reader.oldest());
+                if (!reader.print(next, out)) {
+                    System.err.printf("Snapshot %d was overwritten while reading\n", next);
+                }
+            }
+            out.flush();
+            if (follow) {
+                Thread.sleep(POLL_MILLIS);
+            }
+        } while (follow);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.profile;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Periodically writes profile snapshots to a memory-mapped ring file,
+ * so that an external process can follow the profile while the
+ * application runs (see {@link SnapshotReader}).
+ *
+ * <p>The file has a {@value #HEADER_SIZE}-byte header followed by a
+ * ring of fixed-size slots. Each slot holds the raw <tt>instanceof</tt> totals and
+ * the counts of the hottest {@value #MAX_SITES} sites. Snapshot
+ * <tt>n</tt> goes in slot <tt>n % slotCount</tt>, guarded by a sequence
+ * number that is odd while the slot is being written; readers discard
+ * a slot whose sequence number is odd or changes while they read it.
+ * Site names are appended to a text file next to the ring, one per
+ * line, in site ID order.</p>
+ *
+ * <p>Snapshots are taken on a daemon thread by reading the counters
+ * directly, without taking the lock that registration of new sites
+ * holds, so application threads never wait for it. Writes to a slot
+ * are ordered around its sequence number with {@link Fences}.</p>
+ *
+ * @author Rohan Padhye
+ */
+final class SnapshotWriter implements Runnable {
+
+    static final int MAGIC = 0x51495052; // "QIPR"
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 64;
+    static final int SLOT_COUNT_POS = 8;
+    static final int SLOT_SIZE_POS = 12;
+    static final int WRITTEN_POS = 16;
+
+    static final int MAX_SITES = 64;
+    static final int SLOT_HEADER_SIZE = 64;
+    static final int SITE_ENTRY_SIZE = 20;
+    static final int SLOT_SIZE = SLOT_HEADER_SIZE + MAX_SITES * SITE_ENTRY_SIZE;
+
+    // Slot layout: sequence, time, sample rate, registered sites, totals[4], site entries
+    static final int SEQ = 0;
+    static final int TIME = 8;
+    static final int SAMPLE_RATE = 16;
+    static final int REGISTERED = 20;
+    static final int TOTALS = 24;
+    static final int ENTRIES = 56;
+
+    private final MappedByteBuffer buf;
+    private final int slotCount;
+    private final long interval;
+    private final Writer names;
+    private int namesWritten;
+    private long written;
+
+    private final long[] totals = new long[4];
+    private final int[] top = new int[MAX_SITES];
+
+    SnapshotWriter(String file, int slotCount, long interval) throws IOException {
+        this.slotCount = slotCount;
+        this.interval = interval;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            this.buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+        }
+        this.names = new FileWriter(file + ".sites");
+        buf.putInt(0, MAGIC);
+        buf.putInt(4, VERSION);
+        buf.putInt(SLOT_COUNT_POS, slotCount);
+        buf.putInt(SLOT_SIZE_POS, SLOT_SIZE);
+        buf.putLong(WRITTEN_POS, 0);
+    }
+
+    /** Starts a daemon thread taking a snapshot every <tt>interval</tt> milliseconds. */
+    void start() {
+        Thread t = new Thread(this, "quickinstance-snapshots");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Thread.sleep(interval);
+                snapshot();
+            }
+        } catch (InterruptedException e) {
+            // Stop taking snapshots
+        } catch (IOException e) {
+            System.err.printf("[instrument] Profile snapshots stopped: %s\n", e.getMessage());
+        }
+    }
+
+    /** Takes a snapshot; called periodically and once more at exit. */
+    synchronized void snapshot() throws IOException {
+        int registered = SiteCounters.registered();
+        for (; namesWritten < registered; namesWritten++) {
+            names.write(SiteCounters.name(namesWritten));
+            names.write('\n');
+        }
+        names.flush();
+
+        Profiler.totals(totals);
+        int n = hottest(registered);
+
+        int slot = HEADER_SIZE + (int) (written % slotCount) * SLOT_SIZE;
+        long seq = 2 * written + 1;
+        buf.putLong(slot + SEQ, seq);
+        Fences.release();
+        buf.putLong(slot + TIME, System.currentTimeMillis());
+        buf.putInt(slot + SAMPLE_RATE, Profiler.sampleRate());
+        buf.putInt(slot + REGISTERED, registered);
+        for (int i = 0; i < totals.length; i++) {
+            buf.putLong(slot + TOTALS + 8 * i, totals[i]);
+        }
+        buf.putInt(slot + ENTRIES, n);
+        for (int i = 0; i < n; i++) {
+            int pos = slot + SLOT_HEADER_SIZE + i * SITE_ENTRY_SIZE;
+            buf.putInt(pos, top[i]);
+            buf.putLong(pos + 4, SiteCounters.count(top[i], SiteCounters.SUCCESS));
+            buf.putLong(pos + 12, SiteCounters.count(top[i], SiteCounters.FAILURE));
+        }
+        Fences.release();
+        buf.putLong(slot + SEQ, seq + 1);
+        Fences.release();
+        buf.putLong(WRITTEN_POS, ++written);
+    }
+
+    /** Fills {@link #top} with the hottest sites, hottest first, and returns how many. */
+    private int hottest(int registered) {
+        long[] tests = new long[MAX_SITES];
+        int n = 0;
+        for (int site = 0; site < registered; site++) {
+            long t = SiteCounters.count(site, SiteCounters.SUCCESS) + SiteCounters.count(site, SiteCounters.FAILURE);
+            if (t == 0 || (n == MAX_SITES && t <= tests[n - 1])) {
+                continue;
+            }
+            // Insertion into the sorted top list, dropping the coldest if full
+            int i = n < MAX_SITES ? n++ : n - 1;
+            for (; i > 0 && tests[i - 1] < t; i--) {
+                tests[i] = tests[i - 1];
+                top[i] = top[i - 1];
+            }
+            tests[i] = t;
+            top[i] = site;
+        }
+        return n;
+    }
+}
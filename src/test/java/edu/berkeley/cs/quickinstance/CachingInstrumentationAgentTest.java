@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Rohan Padhye
+ */
+public class CachingInstrumentationAgentTest {
+
+    private static final int THREADS = 8;
+    private static final int CLASSES = 200;
+    private static final ClassLoader LOADER = CachingInstrumentationAgentTest.class.getClassLoader();
+
+    /** Appends a marker to the input; can be made to block on one class. */
+    public static class MarkingTransformer implements ClassFileTransformer {
+        final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+        volatile String blockOn;
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                                ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+            calls.computeIfAbsent(className, c -> new AtomicInteger()).incrementAndGet();
+            if (className.equals(blockOn)) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return marked(classfileBuffer);
+        }
+    }
+
+    private static byte[] marked(byte[] bytes) {
+        byte[] result = java.util.Arrays.copyOf(bytes, bytes.length + 1);
+        result[bytes.length] = 42;
+        return result;
+    }
+
+    /** Class bytes that are unique to this test run, so that the disk cache starts cold. */
+    private static byte[] original(String cname, long run) {
+        return (cname + "@" + run).getBytes();
+    }
+
+    @Test
+    public void concurrentLoadsTransformEachClassOnce() throws Exception {
+        MarkingTransformer delegate = new MarkingTransformer();
+        CachingInstrumentationAgent agent = new CachingInstrumentationAgent(delegate);
+        long run = System.nanoTime();
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        Future<?>[] results = new Future<?>[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            results[t] = pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < CLASSES; i++) {
+                    String cname = "test/Concurrent" + i;
+                    byte[] bytes = original(cname, run);
+                    assertArrayEquals(cname, marked(bytes), agent.transform(LOADER, cname, null, null, bytes));
+                }
+                return null;
+            });
+        }
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get();
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(CLASSES, delegate.calls.size());
+        for (Map.Entry<String, AtomicInteger> calls : delegate.calls.entrySet()) {
+            assertEquals(calls.getKey(), 1, calls.getValue().get());
+        }
+    }
+
+    @Test
+    public void hitsDoNotWaitForMisses() throws Exception {
+        MarkingTransformer delegate = new MarkingTransformer();
+        CachingInstrumentationAgent agent = new CachingInstrumentationAgent(delegate);
+        long run = System.nanoTime();
+
+        byte[] hot = original("test/Hot", run);
+        agent.transform(LOADER, "test/Hot", null, null, hot);
+
+        // Start a slow miss, and hold it in the transformer
+        delegate.blockOn = "test/Slow";
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        Future<byte[]> slow = pool.submit(() ->
+                agent.transform(LOADER, "test/Slow", null, null, original("test/Slow", run)));
+        assertTrue(delegate.blocked.await(10, TimeUnit.SECONDS));
+
+        // Hits and unrelated misses still go through while the slow miss is in progress
+        assertArrayEquals(marked(hot), agent.transform(LOADER, "test/Hot", null, null, hot));
+        byte[] other = original("test/Other", run);
+        assertArrayEquals(marked(other), agent.transform(LOADER, "test/Other", null, null, other));
+        assertFalse(slow.isDone());
+
+        delegate.release.countDown();
+        assertArrayEquals(marked(original("test/Slow", run)), slow.get(10, TimeUnit.SECONDS));
+        pool.shutdown();
+        assertEquals(1, delegate.calls.get("test/Hot").get());
+    }
+
+    /** A marking transformer whose configuration is part of the cache key. */
+    public static class ConfiguredMarkingTransformer extends MarkingTransformer implements ConfiguredTransformer {
+        final String configuration;
+
+        ConfiguredMarkingTransformer(String configuration) {
+            this.configuration = configuration;
+        }
+
+        @Override
+        public String configuration() {
+            return configuration;
+        }
+    }
+
+    @Test
+    public void configurationsDoNotShareCacheEntries() throws Exception {
+        long run = System.nanoTime();
+        byte[] bytes = original("test/Configured", run);
+        ConfiguredMarkingTransformer a = new ConfiguredMarkingTransformer("mode=a");
+        new CachingInstrumentationAgent(a).transform(LOADER, "test/Configured", null, null, bytes);
+        ConfiguredMarkingTransformer b = new ConfiguredMarkingTransformer("mode=b");
+        new CachingInstrumentationAgent(b).transform(LOADER, "test/Configured", null, null, bytes);
+        ConfiguredMarkingTransformer a2 = new ConfiguredMarkingTransformer("mode=a");
+        new CachingInstrumentationAgent(a2).transform(LOADER, "test/Configured", null, null, bytes);
+
+        assertEquals(1, a.calls.size());
+        assertEquals("another configuration misses", 1, b.calls.size());
+        assertTrue("the same configuration hits", a2.calls.isEmpty());
+    }
+
+    @Test
+    public void bootstrapClassesAreNotTransformed() throws Exception {
+        MarkingTransformer delegate = new MarkingTransformer();
+        CachingInstrumentationAgent agent = new CachingInstrumentationAgent(delegate);
+        assertNull(agent.transform(null, "test/Boot", null, null, original("test/Boot", System.nanoTime())));
+        assertNull(agent.transform(LOADER, "com/sun/jmx/Impl", null, null, original("com/sun/jmx/Impl", 0)));
+        assertTrue(delegate.calls.isEmpty());
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.cache;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Rohan Padhye
+ */
+public class DirectoryCacheTest {
+
+    @Test
+    public void hitsRecordLastUse() throws Exception {
+        File root = Files.createTempDirectory("qi-dircache").toFile();
+        DirectoryCache cache = new DirectoryCache(root, 2);
+        cache.put("a/B", 1, new byte[] {1, 2, 3});
+        File entry = new File(root, "a/B" + DirectoryCache.VERSIONS_SUFFIX + "/1.class");
+        long stale = System.currentTimeMillis() - 3 * DirectoryCache.TOUCH_INTERVAL_MILLIS;
+        assertTrue(entry.setLastModified(stale));
+
+        assertArrayEquals(new byte[] {1, 2, 3}, cache.get("a/B", 1));
+        assertTrue(entry.lastModified() > stale + DirectoryCache.TOUCH_INTERVAL_MILLIS);
+
+        // Within the interval, further hits leave the file alone
+        assertTrue(entry.setLastModified(stale));
+        assertArrayEquals(new byte[] {1, 2, 3}, cache.get("a/B", 1));
+        assertEquals(stale / 1000, entry.lastModified() / 1000);
+    }
+
+    @Test
+    public void pruneKeepsRecentlyUsedVersions() throws Exception {
+        File root = Files.createTempDirectory("qi-dircache").toFile();
+        DirectoryCache cache = new DirectoryCache(root, 2);
+        File dir = new File(root, "a/B" + DirectoryCache.VERSIONS_SUFFIX);
+        long now = System.currentTimeMillis();
+        cache.put("a/B", 1, new byte[] {1});
+        new File(dir, "1.class").setLastModified(now - 5 * DirectoryCache.TOUCH_INTERVAL_MILLIS);
+        cache.put("a/B", 2, new byte[] {2});
+        new File(dir, "2.class").setLastModified(now - 4 * DirectoryCache.TOUCH_INTERVAL_MILLIS);
+
+        // Using the oldest version makes the other one the least recently used
+        assertNotNull(cache.get("a/B", 1));
+        cache.put("a/B", 3, new byte[] {3});
+        assertNotNull(cache.get("a/B", 1));
+        assertNull(cache.get("a/B", 2));
+        assertNotNull(cache.get("a/B", 3));
+    }
+}
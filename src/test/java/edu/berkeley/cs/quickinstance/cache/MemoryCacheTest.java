@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.cache;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Rohan Padhye
+ */
+public class MemoryCacheTest {
+
+    private static final int THREADS = 8;
+    private static final int KEYS = 2000;
+    private static final int OPERATIONS = 20000;
+
+    /** An unbounded delegate that counts lookups. */
+    private static class MapCache implements ClassCache {
+        final Map<Long, byte[]> entries = new ConcurrentHashMap<>();
+        final AtomicInteger gets = new AtomicInteger();
+
+        @Override
+        public byte[] get(String cname, long key) {
+            gets.incrementAndGet();
+            byte[] bytes = entries.get(key);
+            return bytes != null ? bytes.clone() : null;
+        }
+
+        @Override
+        public void put(String cname, long key, byte[] bytes) {
+            entries.put(key, bytes.clone());
+        }
+    }
+
+    /** The class file for a key, with a length that varies by key. */
+    private static byte[] contents(long key) {
+        byte[] bytes = new byte[64 + (int) (key % 512)];
+        Arrays.fill(bytes, (byte) key);
+        bytes[0] = (byte) (key >>> 8);
+        return bytes;
+    }
+
+    @Test
+    public void concurrentGetAndPutReturnTheRightBytes() throws Exception {
+        MapCache delegate = new MapCache();
+        long maxBytes = 64 << 10; // Far smaller than all keys, so that segments keep evicting
+        MemoryCache cache = new MemoryCache(delegate, maxBytes);
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        Future<?>[] results = new Future<?>[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final long seed = t;
+            results[t] = pool.submit(() -> {
+                Random random = new Random(seed);
+                start.await();
+                for (int i = 0; i < OPERATIONS; i++) {
+                    long key = random.nextInt(KEYS);
+                    if (random.nextInt(4) == 0) {
+                        cache.put("C" + key, key, contents(key));
+                    } else {
+                        byte[] bytes = cache.get("C" + key, key);
+                        if (bytes != null) {
+                            assertArrayEquals("key " + key, contents(key), bytes);
+                            // Callers may scribble on what they get back
+                            bytes[0]++;
+                        }
+                    }
+                    assertTrue(cache.bytes() <= maxBytes);
+                }
+                return null;
+            });
+        }
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get();
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+        // Everything that was ever put is still served, from memory or from the delegate
+        for (long key : delegate.entries.keySet()) {
+            assertArrayEquals(contents(key), cache.get("C" + key, key));
+        }
+        assertTrue(cache.bytes() <= maxBytes);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedWithinSegment() throws Exception {
+        MapCache delegate = new MapCache();
+        MemoryCache cache = new MemoryCache(delegate, 16 * 1000);
+        // Keys that are multiples of 16 fall in the same segment, which holds 1000 bytes
+        long a = 0, b = 16, c = 32;
+        cache.put("A", a, new byte[400]);
+        cache.put("B", b, new byte[400]);
+        cache.get("A", a);
+        cache.put("C", c, new byte[400]);
+
+        int before = delegate.gets.get();
+        cache.get("A", a);
+        cache.get("C", c);
+        assertEquals("recently used entries stay in memory", before, delegate.gets.get());
+        cache.get("B", b);
+        assertEquals("the eldest entry was evicted", before + 1, delegate.gets.get());
+    }
+
+    @Test
+    public void prefetchNeverEvicts() throws Exception {
+        MapCache delegate = new MapCache();
+        MemoryCache cache = new MemoryCache(delegate, 16 * 1000);
+        for (long key = 0; key < 5 * 16; key += 16) {
+            delegate.put("C" + key, key, new byte[300]);
+        }
+        // Three entries fill the segment; the rest are skipped rather than evicting the first ones
+        int loaded = 0;
+        for (long key = 0; key < 5 * 16; key += 16) {
+            loaded += cache.prefetch("C" + key, key);
+        }
+        assertEquals(900, loaded);
+        int before = delegate.gets.get();
+        cache.get("C0", 0);
+        cache.get("C16", 16);
+        cache.get("C32", 32);
+        assertEquals(before, delegate.gets.get());
+    }
+
+    @Test
+    public void concurrentMissesOnOneKeyAgree() throws Exception {
+        MapCache delegate = new MapCache();
+        delegate.put("X", 7, contents(7));
+        MemoryCache cache = new MemoryCache(delegate, 1 << 20);
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        Future<?>[] results = new Future<?>[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            results[t] = pool.submit(() -> {
+                start.await();
+                return cache.get("X", 7);
+            });
+        }
+        start.countDown();
+        for (Future<?> result : results) {
+            assertArrayEquals(contents(7), (byte[]) result.get());
+        }
+        pool.shutdown();
+        assertEquals(contents(7).length, cache.bytes());
+    }
+}
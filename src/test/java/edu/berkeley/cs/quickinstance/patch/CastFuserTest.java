@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.patch;
+
+import java.io.InputStream;
+import java.util.Set;
+
+import edu.berkeley.cs.quickinstance.ClassHierarchy;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import static org.junit.Assert.*;
+import static org.objectweb.asm.Opcodes.INSTANCEOF;
+
+/**
+ * @author Rohan Padhye
+ */
+public class CastFuserTest {
+
+    /** Methods whose tests are analyzed; the comment on each says whether its test guards the cast. */
+    @SuppressWarnings("unused")
+    static class Cases {
+        static Object other;
+
+        // Guards
+        static int guarded(Object o) {
+            if (o instanceof String) {
+                return ((String) o).length();
+            }
+            return 0;
+        }
+
+        // Guards, on the branch taken by ifne
+        static int negated(Object o) {
+            if (!(o instanceof String)) {
+                return 0;
+            }
+            return ((String) o).length();
+        }
+
+        // Does not guard: the local is overwritten before the cast
+        static int killed(Object o) {
+            if (o instanceof String) {
+                o = other;
+                return ((String) o).length();
+            }
+            return 0;
+        }
+
+        // Guards: the fact holds on both edges into the join
+        static int joinBothSides(Object o, boolean flag) {
+            if (o instanceof String) {
+                if (flag) {
+                    other = null;
+                } else {
+                    other = o;
+                }
+                return ((String) o).length();
+            }
+            return 0;
+        }
+
+        // Does not guard: the join is also reached without the test
+        static int joinOneSide(Object o, boolean flag) {
+            if (o instanceof String || flag) {
+                return ((String) o).length();
+            }
+            return 0;
+        }
+
+        // Does not guard: exception handlers start with no facts
+        static int handler(Object o) {
+            if (o instanceof String) {
+                try {
+                    other = o.toString();
+                } catch (RuntimeException e) {
+                    return ((String) o).length();
+                }
+            }
+            return 0;
+        }
+
+        // Guards: every iteration is entered through the test
+        static int loopCondition(Object o) {
+            int n = 0;
+            while (o instanceof String) {
+                n += ((String) o).length();
+                o = other;
+            }
+            return n;
+        }
+
+        // Does not guard: the back edge carries the store into the loop
+        static int loopBody(Object o, int count) {
+            int n = 0;
+            if (o instanceof String) {
+                for (int i = 0; i < count; i++) {
+                    n += ((String) o).length();
+                    o = other;
+                }
+            }
+            return n;
+        }
+
+        // Guards: the cast is to a supertype of the tested type
+        static int upcast(Object o) {
+            if (o instanceof String) {
+                return ((CharSequence) o).length();
+            }
+            return 0;
+        }
+
+        // Does not guard: the cast comes after the branches join
+        static int after(Object o) {
+            if (o instanceof String) {
+                other = o;
+            }
+            return ((String) o).length();
+        }
+    }
+
+    private static final ClassNode CASES = read(Cases.class);
+    private static final ClassHierarchy HIERARCHY = new ClassHierarchy(CastFuserTest.class.getClassLoader());
+
+    private static ClassNode read(Class<?> type) {
+        try (InputStream in = type.getResourceAsStream(type.getName().substring(type.getName().lastIndexOf('.') + 1) + ".class")) {
+            ClassNode cn = new ClassNode();
+            new ClassReader(in).accept(cn, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+            return cn;
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /** Returns true if the method's only test guards its cast. */
+    private static boolean guards(String name) {
+        for (MethodNode mn : CASES.methods) {
+            if (mn.name.equals(name)) {
+                Set<AbstractInsnNode> guarding = CastFuser.guardingTests(CASES.name, mn, HIERARCHY);
+                for (AbstractInsnNode insn : guarding) {
+                    assertEquals(INSTANCEOF, insn.getOpcode());
+                }
+                return !guarding.isEmpty();
+            }
+        }
+        throw new AssertionError("No method " + name + " in " + Type.getObjectType(CASES.name).getClassName());
+    }
+
+    @Test
+    public void testsGuardCastsOnTheirTakenBranch() {
+        assertTrue(guards("guarded"));
+        assertTrue(guards("negated"));
+    }
+
+    @Test
+    public void storesKillFacts() {
+        assertFalse(guards("killed"));
+    }
+
+    @Test
+    public void joinsKeepOnlyFactsFromEveryEdge() {
+        assertTrue(guards("joinBothSides"));
+        assertFalse(guards("joinOneSide"));
+        assertFalse(guards("after"));
+    }
+
+    @Test
+    public void handlersStartWithNoFacts() {
+        assertFalse(guards("handler"));
+    }
+
+    @Test
+    public void loopsReachAFixpoint() {
+        assertTrue(guards("loopCondition"));
+        assertFalse(guards("loopBody"));
+    }
+
+    @Test
+    public void castsToSupertypesAreGuarded() {
+        assertTrue(guards("upcast"));
+    }
+}
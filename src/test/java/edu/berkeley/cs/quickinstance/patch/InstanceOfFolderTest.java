@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.patch;
+
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.berkeley.cs.quickinstance.ClassHierarchy;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import static org.junit.Assert.*;
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * @author Rohan Padhye
+ */
+public class InstanceOfFolderTest {
+
+    /** Methods whose test is folded; values are copied to locals of type Object to hide their types from javac. */
+    @SuppressWarnings({"unused", "ConstantConditions"})
+    static class Cases {
+        // Null check: String implements CharSequence
+        static boolean subtype(String s) {
+            Object o = s;
+            return o instanceof CharSequence;
+        }
+
+        // Null check, without the hierarchy
+        static boolean object(String s) {
+            Object o = s;
+            return o instanceof Object;
+        }
+
+        // False, without the hierarchy
+        static boolean nullConstant() {
+            Object o = null;
+            return o instanceof String;
+        }
+
+        // False: neither class extends the other
+        static boolean unrelated(Integer i) {
+            Object o = i;
+            return o instanceof String;
+        }
+
+        // Not folded: a Number may be an Integer
+        static boolean downcast(Number n) {
+            Object o = n;
+            return o instanceof Integer;
+        }
+
+        // False: no subclass of the final Integer can implement Runnable
+        static boolean finalClass(Integer i) {
+            Object o = i;
+            return o instanceof Runnable;
+        }
+
+        // Not folded: a subclass of Number may implement Runnable
+        static boolean nonFinalClass(Number n) {
+            Object o = n;
+            return o instanceof Runnable;
+        }
+
+        // Not folded: values of interface type need not implement it
+        static boolean interfaceOperand(CharSequence c) {
+            Object o = c;
+            return o instanceof String;
+        }
+    }
+
+    private static final ClassHierarchy HIERARCHY = new ClassHierarchy(InstanceOfFolderTest.class.getClassLoader());
+
+    /** Folds the method's test and returns the instructions that replaced it. */
+    private static List<AbstractInsnNode> fold(String name, boolean indy) {
+        ClassNode cn = new ClassNode();
+        try (InputStream in = Cases.class.getResourceAsStream("InstanceOfFolderTest$Cases.class")) {
+            new ClassReader(in).accept(cn, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+        for (MethodNode mn : cn.methods) {
+            if (mn.name.equals(name)) {
+                InstanceOfFolder.fold(cn.name, mn, HIERARCHY, indy);
+                List<AbstractInsnNode> insns = new ArrayList<>();
+                for (AbstractInsnNode insn : mn.instructions.toArray()) {
+                    // Skip the store, load and return around the test
+                    if (insn.getOpcode() != -1 && insn.getOpcode() != ASTORE && insn.getOpcode() != ALOAD
+                            && insn.getOpcode() != IRETURN && insn.getOpcode() != ACONST_NULL) {
+                        insns.add(insn);
+                    }
+                }
+                return insns;
+            }
+        }
+        throw new AssertionError("No method " + name + " in " + Type.getObjectType(cn.name).getClassName());
+    }
+
+    private static void assertFoldedTo(String name, int result, String operand, Class<?> target) {
+        List<AbstractInsnNode> insns = fold(name, true);
+        assertEquals(name, 1, insns.size());
+        InvokeDynamicInsnNode indy = (InvokeDynamicInsnNode) insns.get(0);
+        assertEquals(name, "(Ljava/lang/Object;)Z", indy.desc);
+        assertEquals(name, operand, indy.bsmArgs[0]);
+        assertEquals(name, Type.getType(target), indy.bsmArgs[1]);
+        assertEquals(name, result, indy.bsmArgs[2]);
+
+        // Without invokedynamic, the test is left alone
+        assertNotFolded(name, false);
+    }
+
+    private static void assertNotFolded(String name, boolean indy) {
+        List<AbstractInsnNode> insns = fold(name, indy);
+        assertEquals(name, 1, insns.size());
+        assertEquals(name, INSTANCEOF, insns.get(0).getOpcode());
+    }
+
+    @Test
+    public void subtypesFoldToNullChecks() {
+        assertFoldedTo("subtype", FoldedInstanceOf.NON_NULL, "java/lang/String", CharSequence.class);
+
+        List<AbstractInsnNode> insns = fold("object", false);
+        assertEquals(IFNONNULL, insns.get(0).getOpcode());
+        for (AbstractInsnNode insn : insns) {
+            assertNotEquals(INSTANCEOF, insn.getOpcode());
+        }
+    }
+
+    @Test
+    public void nullConstantsFoldToFalse() {
+        List<AbstractInsnNode> insns = fold("nullConstant", false);
+        assertEquals(2, insns.size());
+        assertEquals(POP, insns.get(0).getOpcode());
+        assertEquals(ICONST_0, insns.get(1).getOpcode());
+    }
+
+    @Test
+    public void unrelatedClassesFoldToFalse() {
+        assertFoldedTo("unrelated", FoldedInstanceOf.FALSE, "java/lang/Integer", String.class);
+        assertNotFolded("downcast", true);
+    }
+
+    @Test
+    public void finalClassesFoldToFalseAgainstInterfaces() {
+        assertFoldedTo("finalClass", FoldedInstanceOf.FALSE, "java/lang/Integer", Runnable.class);
+        assertNotFolded("nonFinalClass", true);
+    }
+
+    @Test
+    public void interfaceOperandsAreLeftAlone() {
+        assertNotFolded("interfaceOperand", true);
+    }
+
+    private static MethodHandle link(String operand, Class<?> target, int result) {
+        return FoldedInstanceOf.bootstrap(MethodHandles.lookup(), "instanceOf",
+                MethodType.methodType(boolean.class, Object.class), operand, target, result).dynamicInvoker();
+    }
+
+    @Test
+    public void foldsAreCheckedWhenLinked() throws Throwable {
+        MethodHandle nonNull = link("java/lang/String", CharSequence.class, FoldedInstanceOf.NON_NULL);
+        assertTrue((boolean) nonNull.invokeExact((Object) "s"));
+        assertFalse((boolean) nonNull.invokeExact((Object) null));
+        MethodHandle never = link("java/lang/Integer", Runnable.class, FoldedInstanceOf.FALSE);
+        assertFalse((boolean) never.invokeExact((Object) 1));
+
+        // Facts that no longer hold fall back to the full test
+        long invalidated = FoldedInstanceOf.invalidated.sum();
+        MethodHandle staleNonNull = link("java/lang/Number", Integer.class, FoldedInstanceOf.NON_NULL);
+        assertFalse((boolean) staleNonNull.invokeExact((Object) 1L));
+        assertTrue((boolean) staleNonNull.invokeExact((Object) 1));
+        MethodHandle staleNever = link("java/lang/Integer", Number.class, FoldedInstanceOf.FALSE);
+        assertTrue((boolean) staleNever.invokeExact((Object) 1));
+        MethodHandle missing = link("qi/Missing", Number.class, FoldedInstanceOf.FALSE);
+        assertTrue((boolean) missing.invokeExact((Object) 1));
+        assertEquals(invalidated + 3, FoldedInstanceOf.invalidated.sum());
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.patch;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.berkeley.cs.quickinstance.ClassHierarchy;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import static org.junit.Assert.*;
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * @author Rohan Padhye
+ */
+public class PatchingTransformerTest {
+
+    private static final List<String> MODES = Arrays.asList("ids", "cache", "indy");
+
+    public interface I {}
+    public interface J extends I {}
+    public interface K {}
+    public static class A implements I {}
+    public static class B extends A implements K {}
+    public static class C extends B {}
+    public static class D extends C implements J {}
+    public static class E extends D {}
+    public static class F extends E {}
+    public static class G implements J {}
+
+    /** Runs a test before the static initializer of {@link Early} has set up its inline caches. */
+    public static class EarlyBase {
+        public static final String RESULT = Early.test("s") + "" + Early.test(new D()) + Early.test(null);
+    }
+
+    public static class Early extends EarlyBase {
+        /** Initializes this class, which first initializes the superclass, which calls {@link #test}. */
+        public static String result() {
+            return RESULT;
+        }
+
+        public static int test(Object o) {
+            return o instanceof CharSequence ? 1 : 0;
+        }
+    }
+
+    /**
+     * Tests every operand against every target. Each operand is tested
+     * a few times in a row, so that caches and call sites are hit while
+     * they are monomorphic and polymorphic, and then all of them again,
+     * once sites have gone megamorphic.
+     */
+    public static class Samples {
+        private static final Object[] OPERANDS = {
+                null, new A(), new B(), new C(), new D(), new E(), new F(), new G(), "s", 1,
+                new int[0], new A[0], new D[0], new Object[0], new I[0], new int[0][],
+        };
+
+        public static String run() {
+            StringBuilder results = new StringBuilder(Early.result());
+            for (Object o : OPERANDS) {
+                for (int i = 0; i < 3; i++) {
+                    results.append(' ').append(test(o));
+                }
+            }
+            for (Object o : OPERANDS) {
+                results.append(' ').append(test(o));
+            }
+            return results.toString();
+        }
+
+        private static String test(Object o) {
+            return "" + (o instanceof A ? 1 : 0) + (o instanceof B ? 1 : 0) + (o instanceof C ? 1 : 0)
+                    + (o instanceof D ? 1 : 0) + (o instanceof F ? 1 : 0) + (o instanceof G ? 1 : 0)
+                    + (o instanceof I ? 1 : 0) + (o instanceof J ? 1 : 0) + (o instanceof K ? 1 : 0)
+                    + (o instanceof A[] ? 1 : 0) + (o instanceof I[] ? 1 : 0) + (o instanceof Object[] ? 1 : 0)
+                    + (o instanceof int[] ? 1 : 0) + (o instanceof Object ? 1 : 0) + (o instanceof Number ? 1 : 0)
+                    + (o instanceof Comparable ? 1 : 0) + (o instanceof Cloneable ? 1 : 0);
+        }
+    }
+
+    /** Defines classes from the given bytes, or patched copies of its parent's classes, before asking its parent. */
+    private static class PatchingLoader extends ClassLoader {
+        private final Map<String, byte[]> classes;
+        private final PatchingTransformer transformer;
+        private final ClassLoader hierarchy;
+
+        PatchingLoader(ClassLoader parent, Map<String, byte[]> classes, PatchingTransformer transformer,
+                       ClassLoader hierarchy) {
+            super(parent);
+            this.classes = classes;
+            this.transformer = transformer;
+            this.hierarchy = hierarchy;
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            String internalName = name.replace('.', '/');
+            byte[] bytes = classes.get(internalName);
+            if (bytes == null) {
+                return super.loadClass(name, resolve);
+            }
+            Class<?> c = findLoadedClass(name);
+            if (c == null) {
+                if (transformer != null) {
+                    try {
+                        byte[] patched = transformer.transform(hierarchy, internalName, null, null, bytes);
+                        assertNotNull(name + " could not be patched", patched);
+                        assertNoInstanceOf(patched);
+                        bytes = patched;
+                    } catch (Exception e) {
+                        throw new ClassNotFoundException(name, e);
+                    }
+                }
+                c = defineClass(name, bytes, 0, bytes.length);
+            }
+            if (resolve) {
+                resolveClass(c);
+            }
+            return c;
+        }
+
+        @Override
+        public InputStream getResourceAsStream(String name) {
+            byte[] bytes = classes.get(name.substring(0, name.length() - ".class".length()));
+            return bytes != null ? new ByteArrayInputStream(bytes) : super.getResourceAsStream(name);
+        }
+    }
+
+    private static void assertNoInstanceOf(byte[] bytes) {
+        ClassNode cn = new ClassNode();
+        new ClassReader(bytes).accept(cn, 0);
+        for (MethodNode mn : cn.methods) {
+            for (AbstractInsnNode insn : mn.instructions.toArray()) {
+                assertNotEquals(cn.name + "#" + mn.name + " still has instanceof", INSTANCEOF, insn.getOpcode());
+            }
+        }
+    }
+
+    private static byte[] bytesOf(Class<?> type) throws Exception {
+        try (InputStream in = type.getResourceAsStream(type.getName().substring(type.getName().lastIndexOf('.') + 1) + ".class")) {
+            return new ClassReader(in).b;
+        }
+    }
+
+    @Test
+    public void patchedTestsAgreeWithNativeInstanceOf() throws Exception {
+        String expected = Samples.run();
+        ClassLoader parent = PatchingTransformerTest.class.getClassLoader();
+        Map<String, byte[]> classes = new HashMap<>();
+        for (Class<?> type : new Class<?>[] {Samples.class, EarlyBase.class, Early.class}) {
+            classes.put(type.getName().replace('.', '/'), bytesOf(type));
+        }
+        for (String mode : MODES) {
+            ClassLoader loader = new PatchingLoader(parent, classes, new PatchingTransformer(mode, true, true), parent);
+            Object actual = loader.loadClass(Samples.class.getName()).getMethod("run").invoke(null);
+            assertEquals(mode, expected, actual);
+        }
+    }
+
+    /** Generates <tt>qi/Flip</tt> as an interface or a class, and <tt>qi/Impl</tt>, which implements or extends it. */
+    private static Map<String, byte[]> flip(boolean isInterface) {
+        Map<String, byte[]> classes = new HashMap<>();
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_8, ACC_PUBLIC | (isInterface ? ACC_INTERFACE | ACC_ABSTRACT : ACC_SUPER),
+                "qi/Flip", null, "java/lang/Object", null);
+        if (!isInterface) {
+            constructor(cw, "java/lang/Object");
+        }
+        cw.visitEnd();
+        classes.put("qi/Flip", cw.toByteArray());
+
+        cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        String superName = isInterface ? "java/lang/Object" : "qi/Flip";
+        cw.visit(V1_8, ACC_PUBLIC | ACC_SUPER, "qi/Impl", null, superName,
+                isInterface ? new String[] {"qi/Flip"} : null);
+        constructor(cw, superName);
+        cw.visitEnd();
+        classes.put("qi/Impl", cw.toByteArray());
+        return classes;
+    }
+
+    private static void constructor(ClassWriter cw, String superName) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, superName, "<init>", "()V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /** Generates <tt>qi/User</tt>, whose <tt>test(Object)</tt> is <tt>o instanceof qi.Flip</tt>. */
+    private static byte[] user() {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_8, ACC_PUBLIC | ACC_SUPER, "qi/User", null, "java/lang/Object", null);
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "test", "(Ljava/lang/Object;)Z", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitTypeInsn(INSTANCEOF, "qi/Flip");
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    @Test
+    public void targetsThatChangedKindSincePatchingAreStillDecided() throws Exception {
+        ClassLoader parent = PatchingTransformerTest.class.getClassLoader();
+        for (boolean wasInterface : new boolean[] {true, false}) {
+            ClassLoader hierarchy = new PatchingLoader(parent, flip(wasInterface), null, null);
+            assertEquals(wasInterface, new ClassHierarchy(hierarchy).info("qi/Flip").isInterface());
+            for (String mode : MODES) {
+                Map<String, byte[]> classes = flip(!wasInterface);
+                classes.put("qi/User", user());
+                ClassLoader loader = new PatchingLoader(parent, classes, new PatchingTransformer(mode, true, true),
+                        hierarchy) {
+                    @Override
+                    protected synchronized Class<?> loadClass(String name, boolean resolve)
+                            throws ClassNotFoundException {
+                        // Only the user of the target is patched
+                        if (!name.equals("qi.User")) {
+                            byte[] bytes = classes.get(name.replace('.', '/'));
+                            if (bytes != null) {
+                                Class<?> c = findLoadedClass(name);
+                                return c != null ? c : defineClass(name, bytes, 0, bytes.length);
+                            }
+                        }
+                        return super.loadClass(name, resolve);
+                    }
+                };
+                Class<?> user = loader.loadClass("qi.User");
+                Object impl = loader.loadClass("qi.Impl").getConstructor().newInstance();
+                String what = mode + ", " + (wasInterface ? "interface became class" : "class became interface");
+                for (int i = 0; i < 3; i++) {
+                    assertEquals(what, true, user.getMethod("test", Object.class).invoke(null, impl));
+                    assertEquals(what, false, user.getMethod("test", Object.class).invoke(null, "s"));
+                    assertEquals(what, false, user.getMethod("test", Object.class).invoke(null, (Object) null));
+                }
+            }
+        }
+    }
+    /** Generates <tt>qi/Base</tt>, <tt>qi/Derived</tt>, which extends it or not, and <tt>qi/Tester</tt>. */
+    private static Map<String, byte[]> derived(boolean extendsBase) {
+        Map<String, byte[]> classes = new HashMap<>();
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_8, ACC_PUBLIC | ACC_SUPER, "qi/Base", null, "java/lang/Object", null);
+        constructor(cw, "java/lang/Object");
+        cw.visitEnd();
+        classes.put("qi/Base", cw.toByteArray());
+
+        cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        String superName = extendsBase ? "qi/Base" : "java/lang/Object";
+        cw.visit(V1_8, ACC_PUBLIC | ACC_SUPER, "qi/Derived", null, superName, null);
+        constructor(cw, superName);
+        cw.visitEnd();
+        classes.put("qi/Derived", cw.toByteArray());
+
+        cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_8, ACC_PUBLIC | ACC_SUPER, "qi/Tester", null, "java/lang/Object", null);
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "test", "(Lqi/Derived;)Z", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitTypeInsn(INSTANCEOF, "qi/Base");
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        classes.put("qi/Tester", cw.toByteArray());
+        return classes;
+    }
+
+    @Test
+    public void testsFoldedFromAStaleHierarchyAreStillDecided() throws Exception {
+        ClassLoader parent = PatchingTransformerTest.class.getClassLoader();
+        for (boolean extendedBase : new boolean[] {true, false}) {
+            ClassLoader hierarchy = new PatchingLoader(parent, derived(extendedBase), null, null);
+            for (String mode : MODES) {
+                Map<String, byte[]> classes = derived(!extendedBase);
+                ClassLoader loader = new PatchingLoader(parent, classes, new PatchingTransformer(mode, true, true),
+                        hierarchy) {
+                    @Override
+                    protected synchronized Class<?> loadClass(String name, boolean resolve)
+                            throws ClassNotFoundException {
+                        // Only the tester is patched, against the old hierarchy
+                        if (!name.equals("qi.Tester")) {
+                            byte[] bytes = classes.get(name.replace('.', '/'));
+                            if (bytes != null) {
+                                Class<?> c = findLoadedClass(name);
+                                return c != null ? c : defineClass(name, bytes, 0, bytes.length);
+                            }
+                        }
+                        return super.loadClass(name, resolve);
+                    }
+                };
+                Class<?> derived = loader.loadClass("qi.Derived");
+                Method test = loader.loadClass("qi.Tester").getMethod("test", derived);
+                Object instance = derived.getConstructor().newInstance();
+                String what = mode + ", " + (extendedBase ? "Derived left Base" : "Derived joined Base");
+                for (int i = 0; i < 3; i++) {
+                    assertEquals(what, !extendedBase, test.invoke(null, instance));
+                    assertEquals(what, false, test.invoke(null, (Object) null));
+                }
+            }
+        }
+    }
+}
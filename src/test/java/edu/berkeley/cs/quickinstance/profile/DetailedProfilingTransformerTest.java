@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.profile;
+
+import org.junit.Test;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import static org.junit.Assert.*;
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * @author Rohan Padhye
+ */
+public class DetailedProfilingTransformerTest {
+
+    @Test
+    public void typeTestsInUnreachableCodeAreProfiled() throws Exception {
+        ClassNode cn = new ClassNode();
+        cn.version = V1_8;
+        cn.access = ACC_PUBLIC;
+        cn.name = "Unreachable";
+        cn.superName = "java/lang/Object";
+
+        // static boolean m(Object o) { return false; return o instanceof String; return (String) o != null; }
+        MethodNode mn = new MethodNode(ACC_STATIC, "m", "(Ljava/lang/Object;)Z", null, null);
+        mn.instructions.add(new InsnNode(ICONST_0));
+        mn.instructions.add(new InsnNode(IRETURN));
+        mn.instructions.add(new VarInsnNode(ALOAD, 0));
+        mn.instructions.add(new TypeInsnNode(INSTANCEOF, "java/lang/String"));
+        mn.instructions.add(new InsnNode(IRETURN));
+        mn.instructions.add(new VarInsnNode(ALOAD, 0));
+        mn.instructions.add(new TypeInsnNode(CHECKCAST, "java/lang/String"));
+        mn.instructions.add(new InsnNode(ARETURN));
+        mn.maxLocals = 1;
+        mn.maxStack = 1;
+        cn.methods.add(mn);
+
+        new DetailedProfilingTransformer().runOn(cn);
+
+        int hooks = 0;
+        for (AbstractInsnNode insn : mn.instructions.toArray()) {
+            assertNotEquals(INSTANCEOF, insn.getOpcode());
+            if (insn instanceof MethodInsnNode && ((MethodInsnNode) insn).owner.endsWith("/Profiler")) {
+                hooks++;
+            }
+        }
+        assertEquals(2, hooks);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.profile;
+
+import java.lang.reflect.Array;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Rohan Padhye
+ */
+public class PairHistogramTest {
+
+    private static final int THREADS = 8;
+    private static final int CLASSES = 60;
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void concurrentRecordsAcrossResizesKeepOneEntryPerPair() throws Exception {
+        // Array classes of increasing dimension are distinct, so they give many pairs
+        Class<?>[] classes = new Class<?>[CLASSES];
+        classes[0] = PairHistogramTest.class;
+        for (int i = 1; i < CLASSES; i++) {
+            classes[i] = Array.newInstance(classes[i - 1], 0).getClass();
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        Future<?>[] results = new Future<?>[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int offset = t;
+            results[t] = pool.submit(() -> {
+                start.await();
+                for (int round = 0; round < ROUNDS; round++) {
+                    // Threads walk the pairs from different starting points, so that they race on inserts
+                    for (int n = 0; n < CLASSES * CLASSES; n++) {
+                        int pair = (n + offset * 397) % (CLASSES * CLASSES);
+                        PairHistogram.record(classes[pair / CLASSES], classes[pair % CLASSES]);
+                    }
+                }
+                return null;
+            });
+        }
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get();
+        }
+        pool.shutdown();
+
+        Map<String, Long> counts = new HashMap<>();
+        for (PairHistogram.Entry e : PairHistogram.entries()) {
+            assertNull("duplicate entry for " + e.receiverName + " -> " + e.targetName,
+                    counts.put(e.receiverName + " -> " + e.targetName, e.count()));
+        }
+        assertEquals(CLASSES * CLASSES, counts.size());
+        for (Map.Entry<String, Long> count : counts.entrySet()) {
+            assertEquals(count.getKey(), (long) THREADS * ROUNDS, (long) count.getValue());
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2018, The Regents of the University of California
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs.quickinstance.profile;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Rohan Padhye
+ */
+public class SiteCountersTest {
+
+    private static final int THREADS = 8;
+    private static final int TESTS = 1000;
+
+    @Test
+    public void sitesOfUnregisteredClassesAreNotCounted() {
+        // Before its class registers, a site passes its bare local ID
+        SiteCounters.record(0, SiteCounters.SUCCESS);
+        SiteCounters.record(5000, SiteCounters.FAILURE);
+
+        int base = Profiler.registerSites(new String[] {"instanceof 0 - A#m()V@0\n"});
+        assertNotEquals(0, base & SiteCounters.REGISTERED);
+        int site = base & ~SiteCounters.REGISTERED;
+        assertEquals(0, SiteCounters.count(site, SiteCounters.SUCCESS));
+    }
+
+    @Test
+    public void countsFromAllThreadsAreSummed() throws Exception {
+        int base = Profiler.registerSites(new String[] {"instanceof 0 - A#m()V@0\ninstanceof 0 - A#m()V@1\n"});
+        for (int t = 0; t < THREADS; t++) {
+            // Threads with consecutive IDs record into different stripes
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < TESTS; i++) {
+                    SiteCounters.record(base + 1, SiteCounters.SUCCESS);
+                    SiteCounters.record(base + 1, SiteCounters.FAILURE);
+                    SiteCounters.record(base + 1, SiteCounters.FAILURE);
+                }
+            });
+            thread.start();
+            thread.join();
+        }
+        int site = (base & ~SiteCounters.REGISTERED) + 1;
+        assertEquals(THREADS * TESTS, SiteCounters.count(site, SiteCounters.SUCCESS));
+        assertEquals(2 * THREADS * TESTS, SiteCounters.count(site, SiteCounters.FAILURE));
+        assertEquals(0, SiteCounters.count(site - 1, SiteCounters.SUCCESS));
+    }
+}